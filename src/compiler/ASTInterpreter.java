@@ -0,0 +1,522 @@
+package compiler;
+
+import java.util.*;
+import compiler.AST.*;
+import compiler.exc.*;
+import compiler.lib.*;
+import svm.ExecuteVM;
+
+/**
+ * Execution engine running the enriched AST (after SymbolTableASTVisitor and
+ * TypeCheckEASTVisitor) without generating and assembling code, for programs
+ * too short to pay for the whole pipeline.
+ * The visit translates the AST into a tree of Exec nodes, which is then executed.
+ * Nodes that depend on run time information start uninitialized and replace
+ * themselves in the tree the first time they run: identifiers with a read of the
+ * resolved frame depth and slot (or object field), calls with a direct call of the
+ * resolved function, method calls with a call of the implementation found for
+ * the dispatch table of the receiver, guarded by that dispatch table and
+ * generalised to a lookup on every call if another class shows up.
+ * Frames are Java objects linked by their Access Link; objects and dispatch tables
+ * are allocated on a heap with the same layout as in ExecuteVM, so references and
+ * printed values are the same as with the compiled code. Operands are evaluated in
+ * the same order as in the code of CodeGenerationASTVisitor.
+ */
+public class ASTInterpreter extends BaseASTVisitor<ASTInterpreter.Exec, VoidException> {
+
+	private int[] heap = new int[ExecuteVM.STACKSIZE + 1024];
+	private int hp = ExecuteVM.STACKSIZE; // where the heap of ExecuteVM starts
+	private Frame globals;
+	private final List<FunDef> methods = new ArrayList<>();           // method implementations, by the id stored in dispatch tables
+	private final List<List<FunDef>> dispatchTables = new ArrayList<>();
+
+	public ASTInterpreter() {}
+	public ASTInterpreter(boolean debug) {super(false,debug);} //enables print for debugging
+
+	// runs the program
+	public void run(Node ast) {
+		visit(ast).execute(null);
+	}
+
+	// runtime structures
+
+	/**
+	 * Activation record: the Access Link, the arguments and the values of the local
+	 * declarations. The frame of an object (def == null) only holds its address, and
+	 * is the Access Link of the methods called on it.
+	 */
+	static final class Frame {
+		final FunDef def;
+		final Frame link;
+		final int self;
+		final int[] args;
+		final int[] locals;
+
+		Frame(FunDef def, Frame link, int self, int[] args) {
+			this.def = def;
+			this.link = link;
+			this.self = self;
+			this.args = args;
+			this.locals = def == null ? null : new int[def.decls.length];
+		}
+	}
+
+	// frame "depth" steps up the static chain (of Access Links)
+	private static Frame up(Frame f, int depth) {
+		for (int i = 0; i < depth; i++) f = f.link;
+		return f;
+	}
+
+	private Frame objectFrame(int object) {
+		return new Frame(null, globals, object, null);
+	}
+
+	// translated function or method
+	final class FunDef {
+		final Exec[] decls;       // each stores the value of a local declaration, null for functions
+		final FunDef[] functions; // function defined by each local declaration
+		Exec body;
+
+		FunDef(int decls) {
+			this.decls = new Exec[decls];
+			this.functions = new FunDef[decls];
+		}
+
+		int invoke(Frame link, int[] args) {
+			Frame f = new Frame(this, link, -1, args);
+			for (Exec d : decls) if (d != null) d.execute(f);
+			return body.execute(f);
+		}
+	}
+
+	// nodes
+
+	public abstract static class Exec {
+		final Exec[] kids;
+		private Exec parent;
+
+		Exec(Exec... kids) {
+			this.kids = kids;
+			for (Exec k : kids) k.parent = this;
+		}
+
+		abstract int execute(Frame f);
+
+		// puts node in place of this one in the tree, for the nodes that specialise themselves
+		final Exec replace(Exec node) {
+			for (int i = 0; i < parent.kids.length; i++)
+				if (parent.kids[i] == this) parent.kids[i] = node;
+			node.parent = parent;
+			return node;
+		}
+
+		// values of kids from..kids.length-1, evaluated from the last one as the arguments of a call
+		final int[] arguments(Frame f, int from) {
+			int[] args = new int[kids.length-from];
+			for (int i = args.length-1; i >= 0; i--) args[i] = kids[from+i].execute(f);
+			return args;
+		}
+	}
+
+	static final class Root extends Exec { // parent of the body of a function and of a declaration
+		Root(Exec body) {super(body);}
+		int execute(Frame f) {return kids[0].execute(f);}
+	}
+
+	static final class Const extends Exec {
+		final int value;
+		Const(int value) {this.value = value;}
+		int execute(Frame f) {return value;}
+	}
+
+	static final class Print extends Exec {
+		Print(Exec e) {super(e);}
+		int execute(Frame f) {
+			int v = kids[0].execute(f);
+			System.out.println(v);
+			return v;
+		}
+	}
+
+	static final class If extends Exec {
+		If(Exec c, Exec t, Exec e) {super(c, t, e);}
+		int execute(Frame f) {return kids[0].execute(f) == 1 ? kids[1].execute(f) : kids[2].execute(f);}
+	}
+
+	static final class Add extends Exec {
+		Add(Exec l, Exec r) {super(l, r);}
+		int execute(Frame f) {return kids[0].execute(f) + kids[1].execute(f);}
+	}
+
+	static final class Sub extends Exec {
+		Sub(Exec l, Exec r) {super(l, r);}
+		int execute(Frame f) {return kids[0].execute(f) - kids[1].execute(f);}
+	}
+
+	static final class Mult extends Exec {
+		Mult(Exec l, Exec r) {super(l, r);}
+		int execute(Frame f) {return kids[0].execute(f) * kids[1].execute(f);}
+	}
+
+	static final class Div extends Exec {
+		Div(Exec l, Exec r) {super(l, r);}
+		int execute(Frame f) {return kids[0].execute(f) / kids[1].execute(f);}
+	}
+
+	static final class Equal extends Exec {
+		Equal(Exec l, Exec r) {super(l, r);}
+		int execute(Frame f) {return kids[0].execute(f) == kids[1].execute(f) ? 1 : 0;}
+	}
+
+	static final class LessEqual extends Exec {
+		LessEqual(Exec l, Exec r) {super(l, r);}
+		int execute(Frame f) {return kids[0].execute(f) <= kids[1].execute(f) ? 1 : 0;}
+	}
+
+	static final class And extends Exec { // both operands are evaluated, as in the compiled code
+		And(Exec l, Exec r) {super(l, r);}
+		int execute(Frame f) {
+			int l = kids[0].execute(f);
+			return kids[1].execute(f) != 0 && l != 0 ? 1 : 0;
+		}
+	}
+
+	static final class Or extends Exec {
+		Or(Exec l, Exec r) {super(l, r);}
+		int execute(Frame f) {
+			int l = kids[0].execute(f);
+			return kids[1].execute(f) != 0 || l != 0 ? 1 : 0;
+		}
+	}
+
+	static final class Not extends Exec {
+		Not(Exec e) {super(e);}
+		int execute(Frame f) {return kids[0].execute(f) == 0 ? 1 : 0;}
+	}
+
+	// identifiers
+
+	final class UninitializedId extends Exec {
+		final int depth, offset;
+		UninitializedId(int depth, int offset) {this.depth = depth; this.offset = offset;}
+		int execute(Frame f) {
+			Frame t = up(f, depth);
+			Exec read = t.def == null ? new FieldRead(depth, offset)
+					: offset > 0 ? new ArgRead(depth, offset-1) : new LocalRead(depth, -2-offset);
+			return replace(read).execute(f);
+		}
+	}
+
+	static final class ArgRead extends Exec {
+		final int depth, index;
+		ArgRead(int depth, int index) {this.depth = depth; this.index = index;}
+		int execute(Frame f) {return up(f, depth).args[index];}
+	}
+
+	static final class LocalRead extends Exec {
+		final int depth, index;
+		LocalRead(int depth, int index) {this.depth = depth; this.index = index;}
+		int execute(Frame f) {return up(f, depth).locals[index];}
+	}
+
+	final class FieldRead extends Exec {
+		final int depth, offset;
+		FieldRead(int depth, int offset) {this.depth = depth; this.offset = offset;}
+		int execute(Frame f) {return heap[up(f, depth).self + offset];}
+	}
+
+	static final class SelfRead extends Exec { // object whose frame is "depth" steps up
+		final int depth;
+		SelfRead(int depth) {this.depth = depth;}
+		int execute(Frame f) {return up(f, depth).self;}
+	}
+
+	// declarations
+
+	static final class VarDecl extends Exec {
+		final int index;
+		VarDecl(int index, Exec e) {super(e); this.index = index;}
+		int execute(Frame f) {return f.locals[index] = kids[0].execute(f);}
+	}
+
+	final class ClassDecl extends Exec { // allocates the dispatch table, like ClassNode code
+		final int index;
+		final List<FunDef> dispatchTable;
+		final int[] layout;
+		ClassDecl(int index, List<FunDef> dispatchTable, int[] layout) {this.index = index; this.dispatchTable = dispatchTable; this.layout = layout;}
+		int execute(Frame f) {
+			reserve(dispatchTable.size() + layout.length);
+			f.locals[index] = hp;
+			for (FunDef m : dispatchTable) heap[hp++] = methods.indexOf(m);
+			for (int w : layout) heap[hp++] = w;
+			return f.locals[index];
+		}
+	}
+
+	private void reserve(int words) {
+		if (hp + words > heap.length) heap = Arrays.copyOf(heap, Math.max(2 * heap.length, hp + words));
+	}
+
+	// calls
+
+	final class UninitializedCall extends Exec {
+		final int depth, offset;
+		UninitializedCall(int depth, int offset, Exec[] args) {super(args); this.depth = depth; this.offset = offset;}
+		int execute(Frame f) {
+			Frame t = up(f, depth);
+			Exec call = t.def == null ? new UninitializedMethodCall(offset, new SelfRead(depth), kids) // sibling method
+					: new DirectCall(t.def.functions[-2-offset], depth, kids);
+			return replace(call).execute(f);
+		}
+	}
+
+	// call of a function that is always the same for the call site: only its Access Link changes
+	static final class DirectCall extends Exec {
+		final FunDef def;
+		final int depth;
+		DirectCall(FunDef def, int depth, Exec[] args) {super(args); this.def = def; this.depth = depth;}
+		int execute(Frame f) {
+			int[] args = arguments(f, 0);
+			return def.invoke(up(f, depth), args);
+		}
+	}
+
+	private static Exec[] receiverAndArgs(Exec receiver, Exec[] args) {
+		Exec[] kids = new Exec[args.length+1];
+		kids[0] = receiver;
+		System.arraycopy(args, 0, kids, 1, args.length);
+		return kids;
+	}
+
+	final class UninitializedMethodCall extends Exec {
+		final int offset;
+		UninitializedMethodCall(int offset, Exec receiver, Exec[] args) {super(receiverAndArgs(receiver, args)); this.offset = offset;}
+		int execute(Frame f) {
+			int[] args = arguments(f, 1);
+			int object = kids[0].execute(f);
+			FunDef m = methods.get(heap[heap[object] + offset]);
+			replace(new CachedMethodCall(heap[object], m, offset, kids));
+			return m.invoke(objectFrame(object), args);
+		}
+	}
+
+	// method call that saw only receivers with the given dispatch table
+	final class CachedMethodCall extends Exec {
+		final int dispatchTable;
+		final FunDef method;
+		final int offset;
+		CachedMethodCall(int dispatchTable, FunDef method, int offset, Exec[] kids) {
+			super(kids);
+			this.dispatchTable = dispatchTable; this.method = method; this.offset = offset;
+		}
+		int execute(Frame f) {
+			int[] args = arguments(f, 1);
+			int object = kids[0].execute(f);
+			if (heap[object] == dispatchTable) return method.invoke(objectFrame(object), args);
+			replace(new MethodCall(offset, kids));
+			return methods.get(heap[heap[object] + offset]).invoke(objectFrame(object), args);
+		}
+	}
+
+	// method call with a lookup in the dispatch table of every receiver
+	final class MethodCall extends Exec {
+		final int offset;
+		MethodCall(int offset, Exec[] kids) {super(kids); this.offset = offset;}
+		int execute(Frame f) {
+			int[] args = arguments(f, 1);
+			int object = kids[0].execute(f);
+			return methods.get(heap[heap[object] + offset]).invoke(objectFrame(object), args);
+		}
+	}
+
+	final class New extends Exec { // fields below the dispatch pointer, like the new instruction
+		final int classIndex;
+		New(int classIndex, Exec[] args) {super(args); this.classIndex = classIndex;}
+		int execute(Frame f) {
+			int n = kids.length;
+			int[] fields = new int[n];
+			for (int i = 0; i < n; i++) fields[i] = kids[i].execute(f); // may allocate, in order
+			reserve(n+1);
+			for (int i = 0; i < n; i++) heap[hp+n-1-i] = fields[i];
+			heap[hp+n] = globals.locals[classIndex];
+			hp += n+1;
+			return hp-1; // object address (points to dispatch pointer)
+		}
+	}
+
+	// translation
+
+	private Exec[] translate(List<Node> nodes) {
+		Exec[] execs = new Exec[nodes.size()];
+		for (int i = 0; i < execs.length; i++) execs[i] = visit(nodes.get(i));
+		return execs;
+	}
+
+	// translates the declarations and the body of a function, or of the main program
+	private FunDef function(List<DecNode> declist, Node exp) {
+		FunDef def = new FunDef(declist.size());
+		for (int k = 0; k < declist.size(); k++) {
+			DecNode dec = declist.get(k);
+			if (dec instanceof FunNode) def.functions[k] = function(((FunNode) dec).declist, ((FunNode) dec).exp);
+			else if (dec instanceof ClassNode) def.decls[k] = new Root(classDecl(k, (ClassNode) dec));
+			else def.decls[k] = new Root(new VarDecl(k, visit(((VarNode) dec).exp)));
+		}
+		def.body = new Root(visit(exp));
+		return def;
+	}
+
+	// dispatch table built as in CodeGenerationASTVisitor
+	private Exec classDecl(int index, ClassNode n) {
+		List<FunDef> dispatchTable = new ArrayList<>();
+		if (n.superId != null && n.superEntry != null) {
+			int superPos = -n.superEntry.offset - 2;
+			if (superPos >= 0 && superPos < dispatchTables.size()) dispatchTable = new ArrayList<>(dispatchTables.get(superPos));
+		}
+		for (MethodNode method : n.methods) {
+			FunDef m = function(method.declist, method.exp);
+			methods.add(m);
+			while (dispatchTable.size() <= method.offset) dispatchTable.add(null);
+			dispatchTable.set(method.offset, m);
+		}
+		dispatchTables.add(dispatchTable);
+		List<TypeNode> fields = ((ClassTypeNode) n.getType()).allFields;
+		int[] layout = new int[fields.size() / 32 + 1]; // reference fields, as at the end of the tables of ExecuteVM
+		for (int i = 0; i < fields.size(); i++) if (fields.get(i) instanceof RefTypeNode) layout[i / 32] |= 1 << (i % 32);
+		return new ClassDecl(index, dispatchTable, layout);
+	}
+
+	@Override
+	public Exec visitNode(ProgLetInNode n) {
+		if (print) printNode(n);
+		FunDef main = function(n.declist, n.exp);
+		return new Exec() {
+			int execute(Frame f) {
+				globals = new Frame(main, null, -1, new int[0]);
+				for (Exec d : main.decls) if (d != null) d.execute(globals);
+				return main.body.execute(globals);
+			}
+		};
+	}
+
+	@Override
+	public Exec visitNode(ProgNode n) {
+		if (print) printNode(n);
+		return visit(n.exp);
+	}
+
+	@Override
+	public Exec visitNode(PrintNode n) {
+		if (print) printNode(n);
+		return new Print(visit(n.exp));
+	}
+
+	@Override
+	public Exec visitNode(IfNode n) {
+		if (print) printNode(n);
+		return new If(visit(n.cond), visit(n.th), visit(n.el));
+	}
+
+	@Override
+	public Exec visitNode(EqualNode n) {
+		if (print) printNode(n);
+		return new Equal(visit(n.left), visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(GreaterEqualNode n) {
+		if (print) printNode(n);
+		return new LessEqual(visit(n.right), visit(n.left)); // right <= left, right evaluated first
+	}
+
+	@Override
+	public Exec visitNode(LessEqualNode n) {
+		if (print) printNode(n);
+		return new LessEqual(visit(n.left), visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(TimesNode n) {
+		if (print) printNode(n);
+		return new Mult(visit(n.left), visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(DivNode n) {
+		if (print) printNode(n);
+		return new Div(visit(n.left), visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(PlusNode n) {
+		if (print) printNode(n);
+		return new Add(visit(n.left), visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(MinusNode n) {
+		if (print) printNode(n);
+		return new Sub(visit(n.left), visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(AndNode n) {
+		if (print) printNode(n);
+		return new And(visit(n.left), visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(OrNode n) {
+		if (print) printNode(n);
+		return new Or(visit(n.left), visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(NotNode n) {
+		if (print) printNode(n);
+		return new Not(visit(n.right));
+	}
+
+	@Override
+	public Exec visitNode(BoolNode n) {
+		if (print) printNode(n,n.val.toString());
+		return new Const(n.val?1:0);
+	}
+
+	@Override
+	public Exec visitNode(IntNode n) {
+		if (print) printNode(n,n.val.toString());
+		return new Const(n.val);
+	}
+
+	@Override
+	public Exec visitNode(EmptyNode n) {
+		if (print) printNode(n);
+		return new Const(-1);
+	}
+
+	@Override
+	public Exec visitNode(IdNode n) {
+		if (print) printNode(n,n.id);
+		return new UninitializedId(n.nl-n.entry.nl, n.entry.offset);
+	}
+
+	@Override
+	public Exec visitNode(CallNode n) {
+		if (print) printNode(n,n.id);
+		return new UninitializedCall(n.nl-n.entry.nl, n.entry.offset, translate(n.arglist));
+	}
+
+	@Override
+	public Exec visitNode(ClassCallNode n) {
+		if (print) printNode(n, n.classId);
+		if (n.methodEntry == null) return new Const(-1); // as in CodeGenerationASTVisitor
+		Exec receiver = new UninitializedId(n.nestingLevel-n.entry.nl, n.entry.offset);
+		return new UninitializedMethodCall(n.methodEntry.offset, receiver, translate(n.argList));
+	}
+
+	@Override
+	public Exec visitNode(NewNode n) {
+		if (print) printNode(n, n.classId);
+		return new New(-2-n.entry.offset, translate(n.argList));
+	}
+}
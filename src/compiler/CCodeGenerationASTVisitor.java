@@ -0,0 +1,408 @@
+package compiler;
+
+import compiler.AST.*;
+import compiler.lib.*;
+import compiler.exc.*;
+
+import java.util.*;
+
+import static compiler.lib.FOOLlib.*;
+
+/**
+ * Code generation for C99, to compile FOOL programs to native executables with
+ * a stock compiler (gcc -std=c99 -O2). The output is a single file with a small
+ * runtime for the heap and print.
+ * Frames follow CodeGenerationASTVisitor: every function has a frame struct with
+ * its Access Link, parameter pN for offset N and local declaration lN for offset -N,
+ * and identifiers reach the frame of their declaration by following the static
+ * chain for the difference of nesting levels. The frame of the main program is the
+ * global "g", and the Access Link of a method is its object. Objects and dispatch
+ * tables are allocated on the heap with the same layout as in ExecuteVM, dispatch
+ * tables holding indices in the table of the C functions of the methods, so
+ * references and printed values are the same as with the SVM.
+ * Expressions are translated into a sequence of statements on temporaries, which
+ * keeps the evaluation order of the SVM code (C does not define the order of
+ * operands and arguments).
+ */
+public class CCodeGenerationASTVisitor extends BaseASTVisitor<String, VoidException> {
+
+	private static final String RUNTIME = String.join("\n",
+		"#include <stdio.h>",
+		"#include <stdlib.h>",
+		"",
+		"#define HEAPSIZE (1 << 24)",
+		"",
+		"static int mem[HEAPSIZE];",
+		"static int hp = 0;",
+		"",
+		"int fool_alloc(int n) {",
+		"  if (hp + n > HEAPSIZE) { fprintf(stderr, \"Out of heap memory\\n\"); exit(1); }",
+		"  hp += n;",
+		"  return hp - n;",
+		"}",
+		"",
+		"/* copies the words to the heap, as the alloc instruction */",
+		"int fool_table(int n, const int *words) {",
+		"  int a = fool_alloc(n);",
+		"  for (int i = 0; i < n; i++) mem[a + i] = words[i];",
+		"  return a;",
+		"}",
+		"",
+		"/* fields below the dispatch pointer, as the new instruction: returns the address of the dispatch pointer */",
+		"int fool_new(int n, const int *fields, int dispatch) {",
+		"  int a = fool_alloc(n + 1);",
+		"  for (int i = 0; i < n; i++) mem[a + n - 1 - i] = fields[i];",
+		"  mem[a + n] = dispatch;",
+		"  return a + n;",
+		"}",
+		"",
+		"int fool_print(int v) {",
+		"  printf(\"%d\\n\", v);",
+		"  return v;",
+		"}",
+		"");
+
+	private final List<List<String>> dispatchTables = new ArrayList<>();
+	private final List<String> methods = new ArrayList<>(); // C functions of the methods, by the index stored in dispatch tables
+	private final Map<FunNode,String> functionNames = new HashMap<>();
+	private final List<List<DecNode>> declarations = new ArrayList<>(); // declarations at each nesting level
+	private final StringBuilder structs = new StringBuilder(), prototypes = new StringBuilder(), functions = new StringBuilder();
+	private int functionCount = 0;
+	private boolean inClass; // visiting methods: entries at nesting level 1 are fields and methods
+
+	// code of the C function being generated
+	private String functionName;
+	private StringBuilder body;
+	private String blockIndent;
+	private int temps;
+
+	CCodeGenerationASTVisitor() {}
+	CCodeGenerationASTVisitor(boolean debug) {super(false,debug);} //enables print for debugging
+
+	private void emit(String statement) {
+		body.append(blockIndent).append(statement).append("\n");
+	}
+
+	private String temp(String value) {
+		String t = "t"+(temps++);
+		emit("int "+t+" = "+value+";");
+		return t;
+	}
+
+	private int nestingLevel() {
+		return declarations.size()-1;
+	}
+
+	// frame "depth" steps up the static chain (of Access Links) from the current one
+	private static String frame(int depth) {
+		String frame = "f.link";
+		for (int i = 1; i < depth; i++) frame += "->link";
+		return frame;
+	}
+
+	// word at the given offset of the frame of the entry
+	private String frameWord(int nl, STentry entry) {
+		if (inClass && entry.nl == 1) // field of the object
+			return "mem["+frame(nl-1)+" - "+(-entry.offset)+"]";
+		String member = entry.offset > 0 ? "p"+entry.offset : "l"+(-entry.offset);
+		if (entry.nl == 0) return "g."+member;
+		return nl == entry.nl ? "f."+member : frame(nl-entry.nl)+"->"+member;
+	}
+
+	private List<String> evalAll(List<Node> nodes) {
+		List<String> values = new ArrayList<>();
+		for (Node n : nodes) values.add(visit(n));
+		return values;
+	}
+
+	// arguments evaluated from the last one, as in CodeGenerationASTVisitor
+	private String arguments(List<Node> args) {
+		String[] values = new String[args.size()];
+		for (int i = args.size()-1; i >= 0; i--) values[i] = visit(args.get(i));
+		return String.join(", ", values);
+	}
+
+	private static String parameters(String link, List<ParNode> parlist) {
+		String params = link;
+		for (int i = 1; i <= parlist.size(); i++) params += ", int p"+i;
+		return params;
+	}
+
+	/**
+	 * Generates the C function of a function or method. "link" is the type of its
+	 * Access Link: the frame of the enclosing function, or the object for a method.
+	 */
+	private void function(FunNode n, String name, String link) {
+		StringBuilder struct = new StringBuilder("struct "+name+" {\n  "+link+" link;\n");
+		for (int i = 1; i <= n.parlist.size(); i++) struct.append("  int p").append(i).append(";\n");
+		for (int i = 0; i < n.declist.size(); i++) struct.append("  int l").append(i+2).append(";\n");
+		structs.append(struct).append("};\n\n");
+		String signature = "static int "+name+"("+parameters(link+" link", n.parlist)+")";
+		prototypes.append(signature).append(";\n");
+
+		String outerName = functionName;
+		StringBuilder outerBody = body;
+		String outerIndent = blockIndent;
+		int outerTemps = temps;
+		functionName = name;
+		body = new StringBuilder();
+		blockIndent = "  ";
+		temps = 0;
+		StringBuilder init = new StringBuilder("link");
+		for (int i = 1; i <= n.parlist.size(); i++) init.append(", p").append(i);
+		emit("struct "+name+" f = {"+init+"};");
+		declarations.add(n.declist);
+		declarations(n.declist, "f.");
+		emit("return "+visit(n.exp)+";");
+		declarations.remove(declarations.size()-1);
+		functions.append(signature).append(" {\n").append(body).append("}\n\n");
+		functionName = outerName;
+		body = outerBody;
+		blockIndent = outerIndent;
+		temps = outerTemps;
+	}
+
+	// stores the values of the declarations in the frame (functions and classes are generated on their own)
+	private void declarations(List<DecNode> declist, String frame) {
+		for (int i = 0; i < declist.size(); i++) {
+			String value = visit(declist.get(i));
+			if (value != null) emit(frame+"l"+(i+2)+" = "+value+";");
+		}
+	}
+
+	@Override
+	public String visitNode(ProgLetInNode n) {
+		if (print) printNode(n);
+		StringBuilder main = new StringBuilder("struct fool_main {\n  int link;\n");
+		for (int i = 0; i < n.declist.size(); i++) main.append("  int l").append(i+2).append(";\n");
+		structs.append(main).append("};\n\nstatic struct fool_main g;\n\n");
+		body = new StringBuilder();
+		blockIndent = "  ";
+		declarations.add(n.declist);
+		declarations(n.declist, "g.");
+		emit("(void) "+visit(n.exp)+";");
+		return program();
+	}
+
+	@Override
+	public String visitNode(ProgNode n) {
+		if (print) printNode(n);
+		body = new StringBuilder();
+		blockIndent = "  ";
+		declarations.add(Collections.emptyList());
+		emit("(void) "+visit(n.exp)+";");
+		return program();
+	}
+
+	private String program() {
+		StringBuilder table = new StringBuilder();
+		if (!methods.isEmpty()) {
+			table.append("static int (*const methods[])() = {");
+			for (String m : methods) table.append("\n  ").append(m).append(",");
+			table.append("\n};\n");
+		}
+		return RUNTIME+"\n"+structs+prototypes+"\n"+table+"\n"+functions
+			+"int main(void) {\n"+body+"  return 0;\n}\n";
+	}
+
+	@Override
+	public String visitNode(FunNode n) {
+		if (print) printNode(n,n.id);
+		String name = n.id+"_"+(functionCount++);
+		functionNames.put(n, name);
+		function(n, name, nestingLevel() == 0 ? "struct fool_main *" : "struct "+functionName+" *");
+		return null;
+	}
+
+	@Override
+	public String visitNode(VarNode n) {
+		if (print) printNode(n,n.id);
+		return visit(n.exp);
+	}
+
+	@Override
+	public String visitNode(PrintNode n) {
+		if (print) printNode(n);
+		return temp("fool_print("+visit(n.exp)+")");
+	}
+
+	@Override
+	public String visitNode(IfNode n) {
+		if (print) printNode(n);
+		String cond = visit(n.cond);
+		String t = "t"+(temps++);
+		emit("int "+t+";");
+		emit("if ("+cond+" == 1) {");
+		String outerIndent = blockIndent;
+		blockIndent += "  ";
+		emit(t+" = "+visit(n.th)+";");
+		blockIndent = outerIndent;
+		emit("} else {");
+		blockIndent += "  ";
+		emit(t+" = "+visit(n.el)+";");
+		blockIndent = outerIndent;
+		emit("}");
+		return t;
+	}
+
+	private String binary(Node left, Node right, String operator) {
+		String l = visit(left);
+		String r = visit(right);
+		return temp(l+" "+operator+" "+r);
+	}
+
+	@Override
+	public String visitNode(EqualNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, "==");
+	}
+
+	@Override
+	public String visitNode(GreaterEqualNode n) {
+		if (print) printNode(n);
+		String r = visit(n.right); // right first, as in CodeGenerationASTVisitor
+		String l = visit(n.left);
+		return temp(r+" <= "+l);
+	}
+
+	@Override
+	public String visitNode(LessEqualNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, "<=");
+	}
+
+	@Override
+	public String visitNode(TimesNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, "*");
+	}
+
+	@Override
+	public String visitNode(DivNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, "/");
+	}
+
+	@Override
+	public String visitNode(PlusNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, "+");
+	}
+
+	@Override
+	public String visitNode(MinusNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, "-");
+	}
+
+	@Override
+	public String visitNode(AndNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, "&&"); // operands already evaluated, as the and instruction
+	}
+
+	@Override
+	public String visitNode(OrNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, "||");
+	}
+
+	@Override
+	public String visitNode(NotNode n) {
+		if (print) printNode(n);
+		return temp("!"+visit(n.right));
+	}
+
+	@Override
+	public String visitNode(BoolNode n) {
+		if (print) printNode(n,n.val.toString());
+		return n.val?"1":"0";
+	}
+
+	@Override
+	public String visitNode(IntNode n) {
+		if (print) printNode(n,n.val.toString());
+		return n.val < 0 ? "("+n.val+")" : n.val.toString();
+	}
+
+	@Override
+	public String visitNode(EmptyNode n) {
+		if (print) printNode(n);
+		return "(-1)";
+	}
+
+	@Override
+	public String visitNode(IdNode n) {
+		if (print) printNode(n,n.id);
+		return frameWord(n.nl, n.entry);
+	}
+
+	@Override
+	public String visitNode(CallNode n) {
+		if (print) printNode(n,n.id);
+		String args = arguments(n.arglist);
+		String sep = args.isEmpty() ? "" : ", ";
+		if (inClass && n.entry.nl == 1) { // sibling method, called through the dispatch table of the object
+			String object = frame(n.nl-1);
+			return temp("methods[mem[mem["+object+"] + "+n.entry.offset+"]]("+object+sep+args+")");
+		}
+		int depth = n.nl-n.entry.nl;
+		String link = n.entry.nl == 0 ? "&g" : depth == 0 ? "&f" : frame(depth);
+		String callee = functionNames.get((FunNode) declarations.get(n.entry.nl).get(-2-n.entry.offset));
+		return temp(callee+"("+link+sep+args+")");
+	}
+
+	// OOP
+
+	@Override
+	public String visitNode(ClassNode n) {
+		if (print) printNode(n);
+		List<String> dispatchTable = new ArrayList<>();
+		if (n.superId != null && n.superEntry != null) {
+			int superPos = -n.superEntry.offset - 2;
+			if (superPos >= 0 && superPos < dispatchTables.size()) dispatchTable = new ArrayList<>(dispatchTables.get(superPos));
+		}
+		inClass = true;
+		declarations.add(Collections.emptyList());
+		for (MethodNode method : n.methods) {
+			visit(method);
+			while (dispatchTable.size() <= method.offset) dispatchTable.add(null);
+			dispatchTable.set(method.offset, String.valueOf(methods.indexOf(method.label)));
+		}
+		declarations.remove(declarations.size()-1);
+		inClass = false;
+		dispatchTables.add(dispatchTable);
+		if (dispatchTable.isEmpty()) return temp("fool_table(0, 0)");
+		String words = "t"+(temps++);
+		emit("static const int "+words+"[] = {"+String.join(", ", dispatchTable)+"};");
+		return temp("fool_table("+dispatchTable.size()+", "+words+")");
+	}
+
+	@Override
+	public String visitNode(MethodNode n) {
+		if (print) printNode(n, n.id);
+		n.label = n.id+"_"+(functionCount++);
+		methods.add(n.label);
+		function(n, n.label, "int");
+		return null;
+	}
+
+	@Override
+	public String visitNode(ClassCallNode n) {
+		if (print) printNode(n, n.classId);
+		String args = arguments(n.argList);
+		String object = temp(frameWord(n.nestingLevel, n.entry));
+		return temp("methods[mem[mem["+object+"] + "+n.methodEntry.offset+"]]("+object+(args.isEmpty() ? "" : ", ")+args+")");
+	}
+
+	@Override
+	public String visitNode(NewNode n) {
+		if (print) printNode(n, n.classId);
+		List<String> fields = evalAll(n.argList);
+		String dispatch = "g.l"+(-n.entry.offset);
+		if (fields.isEmpty()) return temp("fool_new(0, 0, "+dispatch+")");
+		String words = "t"+(temps++);
+		emit("int "+words+"[] = {"+String.join(", ", fields)+"};");
+		return temp("fool_new("+fields.size()+", "+words+", "+dispatch+")");
+	}
+}
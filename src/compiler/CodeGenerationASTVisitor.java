@@ -3,293 +3,285 @@ package compiler;
 import compiler.AST.*;
 import compiler.lib.*;
 import compiler.exc.*;
+import svm.Emitter;
 import svm.ExecuteVM;
 
 import java.util.ArrayList;
 import java.util.List;
 
 import static compiler.lib.FOOLlib.*;
-
-public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidException> {
+import static svm.SVMParser.*;
+
+/*
+ * Emits the SVM code of the program into an Emitter (svm.CodeEmitter for the int[] code,
+ * svm.TextEmitter for the assembly). The code of functions and methods is emitted into
+ * blocks, appended after the halt of the main program.
+ */
+public class CodeGenerationASTVisitor extends BaseASTVisitor<Void, VoidException> {
     List<List<String>> dispatchTables = new ArrayList<>();
-  CodeGenerationASTVisitor() {}
-  CodeGenerationASTVisitor(boolean debug) {super(false,debug);} //enables print for debugging
+    private final boolean counting; // incref and decref for the ExecuteVM.Heap.COUNTED heap
+    private final boolean checkpoint; // checkpoint after the declarations of the main program (see svm.Checkpoint)
+    private Emitter out; // where the code of the current function (or of the main program) goes
+    private final List<Emitter> functions = new ArrayList<>();
+  CodeGenerationASTVisitor(Emitter out) {this(out, ExecuteVM.Heap.COLLECTED);}
+  CodeGenerationASTVisitor(Emitter out, ExecuteVM.Heap heap) {this(out, heap, false);}
+  CodeGenerationASTVisitor(Emitter out, ExecuteVM.Heap heap, boolean checkpoint) {this.out = out; counting = heap == ExecuteVM.Heap.COUNTED; this.checkpoint = checkpoint;}
+  CodeGenerationASTVisitor(Emitter out, boolean debug) {super(false,debug); this.out = out; counting = false; checkpoint = false;} //enables print for debugging
 
 	@Override
-	public String visitNode(ProgLetInNode n) {
+	public Void visitNode(ProgLetInNode n) {
 		if (print) printNode(n);
-		String declCode = null;
-		for (Node dec : n.declist) declCode=nlJoin(declCode,visit(dec));
-		return nlJoin(
-			"push 0",	
-			declCode, // generate code for declarations (allocation)			
-			visit(n.exp),
-			"halt",
-			getCode()
-		);
+		out.push(0);
+		for (Node dec : n.declist) visit(dec); // generate code for declarations (allocation)
+		if (checkpoint) out.op(CHECKPOINT); // globals and dispatch tables are set up
+		visit(n.exp);
+		out.op(HALT);
+		for (Emitter function : functions) out.append(function);
+		return null;
 	}
 
 	@Override
-	public String visitNode(ProgNode n) {
+	public Void visitNode(ProgNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.exp),
-			"halt"
-		);
+		visit(n.exp);
+		out.op(HALT);
+		return null;
 	}
 
 	@Override
-	public String visitNode(FunNode n) {
+	public Void visitNode(FunNode n) {
 		if (print) printNode(n,n.id);
-		String declCode = null, popDecl = null, popParl = null;
-		for (Node dec : n.declist) {
-			declCode = nlJoin(declCode,visit(dec));
-			popDecl = nlJoin(popDecl,"pop");
-		}
-		for (int i=0;i<n.parlist.size();i++) popParl = nlJoin(popParl,"pop");
 		String funl = freshFunLabel();
-		putCode(
-			nlJoin(
-				funl+":",
-				"cfp", // set $fp to $sp value
-				"lra", // load $ra value
-				declCode, // generate code for local declarations (they use the new $fp!!!)
-				visit(n.exp), // generate code for function body expression
-				"stm", // set $tm to popped value (function result)
-				popDecl, // remove local declarations from stack
-				"sra", // set $ra to popped value
-				"pop", // remove Access Link from stack
-				popParl, // remove parameters from stack
-				"sfp", // set $fp to popped value (Control Link)
-				"ltm", // load $tm value (function result)
-				"lra", // load $ra value
-				"js"  // jump to to popped address
-			)
-		);
-		return "push "+funl;		
+		function(funl, n);
+		out.pushLabel(funl);
+		return null;
+	}
+
+	// code of a function or method body, in a block of its own
+	private void function(String funl, FunNode n) {
+		Emitter caller = out;
+		out = out.block();
+		out.label(funl);
+		out.op(ENTER); // set $fp to $sp value and push $ra value
+		for (Node dec : n.declist) visit(dec); // generate code for local declarations (they use the new $fp!!!)
+		visit(n.exp); // generate code for function body expression
+		dropFrame(n); // with reference counts, drop those held by parameters and local variables
+		out.op(RET, n.declist.size(), n.parlist.size()); // pop function result, local declarations, $ra,
+		                                                 // Access Link and parameters, restore $fp (Control Link),
+		                                                 // push function result and jump to $ra
+		functions.add(out);
+		out = caller;
 	}
 
 	@Override
-	public String visitNode(VarNode n) {
+	public Void visitNode(VarNode n) {
 		if (print) printNode(n,n.id);
-		return visit(n.exp);
+		visit(n.exp);
+		return null;
 	}
 
 	@Override
-	public String visitNode(PrintNode n) {
+	public Void visitNode(PrintNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.exp),
-			"print"
-		);
+		visit(n.exp);
+		out.op(PRINT);
+		return null;
 	}
 
 	@Override
-	public String visitNode(IfNode n) {
+	public Void visitNode(IfNode n) {
 		if (print) printNode(n);
 	 	String l1 = freshLabel();
-	 	String l2 = freshLabel();		
-		return nlJoin(
-			visit(n.cond),
-			"push 1",
-			"beq "+l1,
-			visit(n.el),
-			"b "+l2,
-			l1+":",
-			visit(n.th),
-			l2+":"
-		);
+	 	String l2 = freshLabel();
+		visit(n.cond);
+		out.push(1);
+		out.branch(BRANCHEQ, l1);
+		visit(n.el);
+		out.branch(BRANCH, l2);
+		out.label(l1);
+		visit(n.th);
+		out.label(l2);
+		return null;
 	}
 
 	@Override
-	public String visitNode(EqualNode n) {
+	public Void visitNode(EqualNode n) {
 		if (print) printNode(n);
-	 	String l1 = freshLabel();
-	 	String l2 = freshLabel();
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"beq "+l1,
-			"push 0",
-			"b "+l2,
-			l1+":",
-			"push 1",
-			l2+":"
-		);
+		visit(n.left);
+		visit(n.right);
+		if (counting && isRef(n.left)) { // the addresses are still compared
+			out.op(DECREF, 1);
+			out.op(DECREF, 0);
+		}
+		out.op(EQ);
+		return null;
 	}
 
     @Override
-    public String visitNode(GreaterEqualNode n) {
+    public Void visitNode(GreaterEqualNode n) {
         if (print) printNode(n);
-        String l1 = freshLabel();
-        String l2 = freshLabel();
-        return nlJoin(
-                visit(n.right),
-                visit(n.left),
-                "bleq "+l1,
-                "push 0",
-                "b "+l2,
-                l1+":",
-                "push 1",
-                l2+":"
-        );
+        visit(n.right);
+        visit(n.left);
+        out.op(LE);
+        return null;
     }
 
     @Override
-    public String visitNode(LessEqualNode n) {
+    public Void visitNode(LessEqualNode n) {
         if (print) printNode(n);
-        String l1 = freshLabel();
-        String l2 = freshLabel();
-        return nlJoin(
-                visit(n.left),
-                visit(n.right),
-                "bleq "+l1,
-                "push 0",
-                "b "+l2,
-                l1+":",
-                "push 1",
-                l2+":"
-        );
+        visit(n.left);
+        visit(n.right);
+        out.op(LE);
+        return null;
     }
 
 	@Override
-	public String visitNode(TimesNode n) {
+	public Void visitNode(TimesNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"mult"
-		);	
+		visit(n.left);
+		visit(n.right);
+		out.op(MULT);
+		return null;
 	}
 
 	@Override
-	public String visitNode(DivNode n) {
+	public Void visitNode(DivNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-				visit(n.left),
-				visit(n.right),
-				"div"
-		);
+		visit(n.left);
+		visit(n.right);
+		out.op(DIV);
+		return null;
 	}
 
 	@Override
-	public String visitNode(PlusNode n) {
+	public Void visitNode(PlusNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"add"				
-		);
+		visit(n.left);
+		visit(n.right);
+		out.op(ADD);
+		return null;
 	}
 
 	@Override
-	public String visitNode(MinusNode n) {
+	public Void visitNode(MinusNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-				visit(n.left),
-				visit(n.right),
-				"sub"
-		);
+		visit(n.left);
+		visit(n.right);
+		out.op(SUB);
+		return null;
 	}
 
 	@Override
-	public String visitNode(CallNode n) {
+	public Void visitNode(CallNode n) {
 		if (print) printNode(n,n.id);
-		String argCode = null, getAR = null;
-		for (int i=n.arglist.size()-1;i>=0;i--) argCode=nlJoin(argCode,visit(n.arglist.get(i)));
-		for (int i = 0;i<n.nl-n.entry.nl;i++) getAR=nlJoin(getAR,"lw");
-		return nlJoin(
-			"lfp", // load Control Link (pointer to frame of function "id" caller)
-			argCode, // generate code for argument expressions in reversed order
-			"lfp", getAR, // retrieve address of frame containing "id" declaration
-                          // by following the static chain (of Access Links)
-            "stm", // set $tm to popped value (with the aim of duplicating top of stack)
-            "ltm", // load Access Link (pointer to frame of function "id" declaration)
-            "ltm", // duplicate top of stack
-            "push "+n.entry.offset, "add", // compute address of "id" declaration
-			"lw", // load address of "id" function
-            "js"  // jump to popped address (saving address of subsequent instruction in $ra)
-		);
+		out.op(LOADFP); // load Control Link (pointer to frame of function "id" caller)
+		for (int i=n.arglist.size()-1;i>=0;i--) visit(n.arglist.get(i)); // generate code for argument expressions in reversed order
+		frameAddress(n.nl-n.entry.nl); // retrieve address of frame containing "id" declaration
+		                               // by following the static chain (of Access Links)
+		out.op(CALL, n.entry.offset); // jump to address of "id" function, loaded from the frame on top of stack
+		                              // (saving address of subsequent instruction in $ra)
+		return null;
 	}
 
 	@Override
-	public String visitNode(IdNode n) {
+	public Void visitNode(IdNode n) {
 		if (print) printNode(n,n.id);
-		String getAR = null;
-		for (int i = 0;i<n.nl-n.entry.nl;i++) getAR=nlJoin(getAR,"lw");
-		return nlJoin(
-			"lfp", getAR, // retrieve address of frame containing "id" declaration
-			              // by following the static chain (of Access Links)
-			"push "+n.entry.offset, "add", // compute address of "id" declaration
-			"lw" // load value of "id" variable
-		);
+		frameWord(n.nl-n.entry.nl, n.entry.offset); // load value of "id" variable
+		if (counting && n.entry.type instanceof RefTypeNode) out.op(INCREF); // the copy is a new reference
+		return null;
+	}
+
+	/*
+	 * With reference counts (ExecuteVM.Heap.COUNTED) every reference value on the stack owns a count:
+	 * incref when it is read from a variable or field, new starts with it, and it is handed over to
+	 * the variable, parameter or field it ends up in, or to the caller as a result. Parameters and
+	 * local variables drop theirs before ret, eq drops both operands.
+	 */
+	private void dropFrame(FunNode n) {
+		if (!counting) return;
+		for (int i = 0; i < n.parlist.size(); i++) {
+			if (n.parlist.get(i).getType() instanceof RefTypeNode) dropWord(i + 1);
+		}
+		for (int i = 0; i < n.declist.size(); i++) {
+			DecNode dec = n.declist.get(i);
+			if (dec instanceof VarNode && dec.getType() instanceof RefTypeNode) dropWord(-2 - i);
+		}
+	}
+
+	private void dropWord(int offset) {
+		out.op(LOADFPW, offset);
+		out.op(DECREF, 0);
+		out.op(POP);
+	}
+
+	// true if the expression evaluates to an object reference (or null)
+	private static boolean isRef(Node n) {
+		if (n instanceof IdNode) return ((IdNode) n).entry.type instanceof RefTypeNode;
+		if (n instanceof CallNode) return ((ArrowTypeNode) ((CallNode) n).entry.type).ret instanceof RefTypeNode;
+		if (n instanceof ClassCallNode) return ((ArrowTypeNode) ((ClassCallNode) n).methodEntry.type).ret instanceof RefTypeNode;
+		if (n instanceof IfNode) return isRef(((IfNode) n).th) || isRef(((IfNode) n).el);
+		if (n instanceof PrintNode) return isRef(((PrintNode) n).exp);
+		return n instanceof NewNode || n instanceof EmptyNode;
+	}
+
+	// address of the frame "depth" steps up the static chain (of Access Links) from the current one
+	private void frameAddress(int depth) {
+		if (depth == 0) {
+			out.op(LOADFP);
+			return;
+		}
+		out.op(LOADFPW, 0); // Access Link of the current frame
+		for (int i = 1;i<depth;i++) out.op(LOADWOFF, 0);
+	}
+
+	// word at the given offset of the frame "depth" steps up the static chain from the current one
+	private void frameWord(int depth, int offset) {
+		if (depth == 0) {
+			out.op(LOADFPW, offset);
+			return;
+		}
+		frameAddress(depth);
+		out.op(LOADWOFF, offset);
 	}
 
 	@Override
-	public String visitNode(BoolNode n) {
+	public Void visitNode(BoolNode n) {
 		if (print) printNode(n,n.val.toString());
-		return "push "+(n.val?1:0);
+		out.push(n.val?1:0);
+		return null;
 	}
 
 	@Override
-	public String visitNode(IntNode n) {
+	public Void visitNode(IntNode n) {
 		if (print) printNode(n,n.val.toString());
-		return "push "+n.val;
+		out.push(n.val);
+		return null;
 	}
 
     @Override
-    public String visitNode(AndNode n) {
+    public Void visitNode(AndNode n) {
         if (print) printNode(n);
-        String l1 = freshLabel();
-        String l2 = freshLabel();
-        return nlJoin(
-                visit(n.left),
-                visit(n.right),
-                "mult",
-                "push 0",
-                "beq " + l1,
-                "push 1",
-                "b " + l2,
-                l1 + ":",
-                "push 0",
-                l2 + ":"
-        );
+        visit(n.left);
+        visit(n.right);
+        out.op(AND);
+        return null;
     }
 
     @Override
-    public String visitNode(OrNode n) {
+    public Void visitNode(OrNode n) {
         if (print) printNode(n);
-        String l1 = freshLabel();
-        String l2 = freshLabel();
-        return nlJoin(
-                visit(n.left),
-                visit(n.right),
-                "add",
-                "push 0",
-                "beq", l1,
-                "push 1",
-                "b", l2,
-                l1 + ":",
-                "push 0",
-                l2 + ":"
-        );
+        visit(n.left);
+        visit(n.right);
+        out.op(OR);
+        return null;
     }
 
 	@Override
-	public String visitNode(NotNode n) {
+	public Void visitNode(NotNode n) {
 		if (print) printNode(n);
-		String l1 = freshLabel();
-		String l2 = freshLabel();
-		return nlJoin(
-				visit(n.right),
-				"push 0",
-				"beq", l1,
-				"push 0",
-				"b", l2,
-				l1 + ":",
-				"push 1",
-				l2 + ":"
-		);
+		visit(n.right);
+		out.op(NOT);
+		return null;
 	}
 
     // OOP
@@ -298,11 +290,12 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
      * Method to visit and generate assembly code for a class node. Prepare a list of strings for the
      * dispatch table. If the current class extends another class, get the dispatch table of the super class.
      * Then, for each method of the class, get its label and offset. If the offset is already present, override
-     * the parent's offset. Save the new obtained dispatch table to the global one. Finally, for each label, create
-     * the assembly code.
+     * the parent's offset. Save the new obtained dispatch table to the global one. Finally, push the labels and
+     * allocate the dispatch table on the heap with a single alloc. The table ends with the layout of the objects
+     * for the garbage collector: fields/32+1 words, bit j of word j/32 set if field j is a reference.
      * */
 	@Override
-	public String visitNode(ClassNode n) {
+	public Void visitNode(ClassNode n) {
 		if (print) printNode(n);
 
 		List<String> dispatchTable = new ArrayList<String>();
@@ -330,128 +323,66 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
 
 		dispatchTables.add(dispatchTable);
 
-		String code = "";
-		for (String label : dispatchTable) {
-			code = nlJoin(code,
-					"push " + label,  // ← AGGIUNTO LO SPAZIO QUI
-					"lhp",
-					"sw",
-					"lhp",
-					"push 1",
-					"add",
-					"shp");
+		List<TypeNode> fields = ((ClassTypeNode) n.getType()).allFields;
+		int[] layout = new int[fields.size() / 32 + 1];
+		for (int i = 0; i < fields.size(); i++) {
+			if (fields.get(i) instanceof RefTypeNode) layout[i / 32] |= 1 << (i % 32);
+		}
+
+		for (int k = layout.length - 1; k >= 0; k--) {
+			out.push(layout[k]); // after the labels
 		}
-		return nlJoin("lhp", code );
+		for (int i = dispatchTable.size() - 1; i >= 0; i--) {
+			out.pushLabel(dispatchTable.get(i)); // in reverse order, so that the first label is popped first
+		}
+		out.op(ALLOC, dispatchTable.size() + layout.length); // copy labels and layout to heap, push dispatch table address
+		return null;
 	}
 
     @Override
-    public String visitNode(MethodNode n) {
+    public Void visitNode(MethodNode n) {
         if (print) printNode(n, n.id);
-        String declCode = null, popDecl = null, popParl = null;
-        for (Node dec : n.declist) {
-            declCode = nlJoin(declCode, visit(dec));
-            popDecl = nlJoin(popDecl, "pop");
-        }
-
-        // remove parameters from stack
-        for (int i = 0; i < n.parlist.size(); i++) {
-            popParl = nlJoin(popParl, "pop");
-        }
-
         String funl = freshFunLabel();
         n.label = funl;
-
-        putCode(
-                nlJoin(
-                        funl + ":",
-                        "cfp",          // set $fp to $sp value
-                        "lra",          // load $ra value
-                        declCode,       // generate code for local declarations (they use the new $fp)
-                        visit(n.exp),   // generate code for function body expression
-                        "stm",          // set $tm to popped value (function result)
-                        popDecl,        // remove local declarations from stack
-                        "sra",          // set $ra to popped value
-                        "pop",          // remove Access Link from stack
-                        popParl,        // remove parameters from stack
-                        "sfp",          // set $fp to popped value (Control Link)
-                        "ltm",          // load $tm value (function result)
-                        "lra",          // load $ra value
-                        "js"            // jump to popped address
-                )
-        );
-
+        function(funl, n); // the code goes after the main program, the class only pushes the label
         return null;
     }
 
     @Override
-    public String visitNode(ClassCallNode n) {
+    public Void visitNode(ClassCallNode n) {
         if (print) printNode(n, n.classId);
 
         if (n.methodEntry == null) {
             System.err.println("Errore: methodEntry non definito per il metodo " + n.methodId);
-            return "push -1"; // return error
+            out.push(-1); // return error
+            return null;
         }
 
+        out.op(LOADFP);
         // Parameter code generation
-        String argCode = null, getAR = null;
         for (int i = n.argList.size() - 1; i >= 0; i--) {
-            argCode = nlJoin(argCode, visit(n.argList.get(i)));
+            visit(n.argList.get(i));
         }
-
-        for (int i = 0; i < n.nestingLevel - n.entry.nl; i++) {
-            getAR = nlJoin(getAR, "lw");
-        }
-
-        return nlJoin(
-                "lfp",
-                argCode,
-                "lfp", getAR,
-                "push " + n.entry.offset,
-                "add",
-                "lw",
-                "stm",
-                "ltm",
-                "ltm",
-                "lw",
-                "push " + n.methodEntry.offset,
-                "add",
-                "lw",
-                "js"
-        );
+        frameWord(n.nestingLevel - n.entry.nl, n.entry.offset); // object pointer (Access Link)
+        out.op(CALLMETHOD, n.methodEntry.offset); // jump to the method address in the dispatch table of the object,
+                                                  // cached at the call site
+        return null;
     }
 
 	@Override
-	public String visitNode(NewNode n) {
+	public Void visitNode(NewNode n) {
 		if (print) printNode(n, n.classId);
-		String argCode = null, heapCode = null;
 		for (Node param : n.argList) {
-			argCode = nlJoin(argCode, visit(param));
-			heapCode = nlJoin(heapCode,
-					"lhp",
-					"sw",
-					"lhp",
-					"push 1",
-					"add",
-					"shp"
-			);
+			visit(param);
 		}
-		return nlJoin(
-				argCode,
-				heapCode,
-				"push " + (ExecuteVM.MEMSIZE + n.entry.offset),
-				"lw",
-				"lhp",
-				"sw",
-				"lhp",
-				"lhp",
-				"push 1",
-				"add",
-				"shp"
-		);
+		out.op(LOADGLOBAL, n.entry.offset); // dispatch pointer, from the global declaration of the class
+		out.op(NEW, n.argList.size()); // copy fields and dispatch pointer to heap, push object address
+		return null;
 	}
 	@Override
-	public String visitNode(EmptyNode n) {
+	public Void visitNode(EmptyNode n) {
 		if (print) printNode(n);
-		return "push -1";
+		out.push(-1);
+		return null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,626 @@
+package compiler;
+
+import java.util.*;
+import compiler.AST.*;
+import compiler.exc.*;
+import compiler.lib.*;
+import svm.ClassWriter;
+import svm.ClassWriter.Code;
+import svm.ClassWriter.Label;
+
+import static svm.ClassWriter.*;
+
+/**
+ * Ahead-of-time code generation for the JVM: translates the enriched AST (after
+ * SymbolTableASTVisitor and TypeCheckEASTVisitor) into class files, so that FOOL
+ * programs get the JIT compiler, objects and garbage collector of the JVM instead
+ * of ExecuteVM.
+ * The program becomes a class with the given name: global variables are static
+ * fields, functions are static methods and main(String[]) evaluates the
+ * declarations and the body. Each FOOL class C becomes a class named program$C,
+ * extending the class of its superclass, with a field for each FOOL field
+ * (declared by the class that introduces it), a constructor taking all of them
+ * (the inherited ones first) and a virtual method for each method.
+ * Nested functions are lambda lifted: FOOL has no assignment, so the variables of
+ * the enclosing functions they use, directly or through the functions they call,
+ * and the object of the enclosing method, are passed to them as leading parameters.
+ * int and bool values are JVM ints, objects and null are erased to Object, and the
+ * receiver of a method call is cast to its static class. Operands are evaluated in
+ * the same order as in the code of CodeGenerationASTVisitor.
+ */
+public class JVMCodeGenerationASTVisitor extends BaseASTVisitor<Void, VoidException> {
+
+	private static final String OBJECT = "Ljava/lang/Object;";
+
+	private final String programName;
+	private final Map<String,byte[]> classFiles = new LinkedHashMap<>();
+	private final Map<FunNode,Function> functions = new LinkedHashMap<>();
+	private final Map<String,ClassInfo> classes = new HashMap<>();
+	private final List<Object> scopes = new ArrayList<>(); // Function or ClassInfo at each nesting level
+	private ClassWriter programWriter;
+	private final Map<ClassInfo,ClassWriter> classWriters = new HashMap<>();
+
+	public JVMCodeGenerationASTVisitor(String programName) {this.programName = programName;}
+	public JVMCodeGenerationASTVisitor(String programName, boolean debug) {super(false,debug); this.programName = programName;} //enables print for debugging
+
+	// generated class files, by class name (internal form)
+	public Map<String,byte[]> classFiles() {
+		return classFiles;
+	}
+
+	// value of a function, a parameter or a local declaration, or the object of a method
+	private static final class Var {
+		final Object owner; // Function, or ClassInfo for the object
+		final String desc;
+		Var(Object owner, String desc) {this.owner = owner; this.desc = desc;}
+	}
+
+	private static final class ClassInfo {
+		final String name;
+		final ClassInfo superclass;
+		final ClassTypeNode type;
+		final Var self;
+		ClassInfo(String name, ClassInfo superclass, ClassTypeNode type) {
+			this.name = name; this.superclass = superclass; this.type = type;
+			self = new Var(this, "L"+name+";");
+		}
+		int fieldCount() {return type.allFields.size();}
+	}
+
+	// FOOL function or method (node == null for the main program) and the JVM method it becomes
+	private static final class Function {
+		final FunNode node;
+		final List<DecNode> declist;
+		final ClassInfo cls; // class of a method, and of the functions nested in it
+		final String owner, name;
+		final boolean method;
+		final Map<Integer,Var> vars = new HashMap<>(); // parameters and local declarations, by offset
+		final Set<Var> free = new LinkedHashSet<>();    // variables of enclosing functions it needs
+		final Set<Function> callees = new LinkedHashSet<>();
+		final Map<Var,Integer> slots = new HashMap<>(); // JVM locals
+		int locals;
+		Code code;
+
+		Function(FunNode node, List<DecNode> declist, ClassInfo cls, String owner, String name, boolean method) {
+			this.node = node; this.declist = declist; this.cls = cls; this.owner = owner; this.name = name; this.method = method;
+		}
+
+		Var var(int offset, TypeNode type) {
+			return vars.computeIfAbsent(offset, o -> new Var(this, desc(type)));
+		}
+
+		boolean defines(Var v) {
+			return v.owner == this || method && v == cls.self;
+		}
+
+		String descriptor() {
+			StringBuilder d = new StringBuilder("(");
+			if (!method) for (Var v : free) d.append(v.desc);
+			for (ParNode par : node.parlist) d.append(desc(par.getType()));
+			return d.append(")").append(desc(node.retType)).toString();
+		}
+	}
+
+	private static String desc(TypeNode t) {
+		return t instanceof RefTypeNode || t instanceof EmptyTypeNode ? OBJECT : "I";
+	}
+
+	private static String desc(ArrowTypeNode t) {
+		StringBuilder d = new StringBuilder("(");
+		for (TypeNode par : t.parlist) d.append(desc(par));
+		return d.append(")").append(desc(t.ret)).toString();
+	}
+
+	private static String constructorDesc(ClassTypeNode t, int fields) {
+		StringBuilder d = new StringBuilder("(");
+		for (int i = 0; i < fields; i++) d.append(desc(t.allFields.get(i)));
+		return d.append(")V").toString();
+	}
+
+	// scopes
+
+	private Function current() {
+		return (Function) scopes.get(scopes.size()-1);
+	}
+
+	private Object scope(int depth) {
+		return scopes.get(scopes.size()-1-depth);
+	}
+
+	// variable read by an identifier "depth" scopes up, null for a global variable
+	private Var variable(int depth, STentry entry) {
+		Object scope = scope(depth);
+		if (scope instanceof ClassInfo) return ((ClassInfo) scope).self; // field of the object
+		Function f = (Function) scope;
+		return f.node == null ? null : f.var(entry.offset, entry.type);
+	}
+
+	private Function nestedFunction(Function f, STentry entry) {
+		return functions.get((FunNode) f.declist.get(-2-entry.offset));
+	}
+
+	/**
+	 * First pass: creates the classes and functions and collects the variables of
+	 * enclosing functions used by each function and the functions it calls.
+	 */
+	private final class FreeVariables extends BaseASTVisitor<Void, VoidException> {
+
+		private void use(Var v) {
+			if (v != null && !current().defines(v)) current().free.add(v);
+		}
+
+		private void visit(List<? extends Node> nodes) {
+			for (Node n : nodes) visit(n);
+		}
+
+		@Override
+		public Void visitNode(ClassNode n) {
+			ClassInfo c = new ClassInfo(programName+"$"+n.id, n.superId == null ? null : classes.get(n.superId), (ClassTypeNode) n.getType());
+			classes.put(n.id, c);
+			scopes.add(c);
+			for (MethodNode m : n.methods) {
+				functions.put(m, new Function(m, m.declist, c, c.name, m.id, true));
+				visit(m);
+			}
+			scopes.remove(scopes.size()-1);
+			return null;
+		}
+
+		@Override
+		public Void visitNode(FunNode n) {
+			Function outer = current();
+			String name = outer.node == null ? n.id : outer.name+"$"+n.id;
+			functions.put(n, new Function(n, n.declist, outer.cls, outer.owner, name, false));
+			return body(n);
+		}
+
+		@Override
+		public Void visitNode(MethodNode n) {
+			return body(n);
+		}
+
+		private Void body(FunNode n) {
+			scopes.add(functions.get(n));
+			visit(n.declist);
+			visit(n.exp);
+			scopes.remove(scopes.size()-1);
+			return null;
+		}
+
+		@Override
+		public Void visitNode(VarNode n) {return visit(n.exp);}
+		@Override
+		public Void visitNode(PrintNode n) {return visit(n.exp);}
+		@Override
+		public Void visitNode(IfNode n) {visit(n.cond); visit(n.th); return visit(n.el);}
+		@Override
+		public Void visitNode(EqualNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(GreaterEqualNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(LessEqualNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(TimesNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(DivNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(PlusNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(MinusNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(AndNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(OrNode n) {visit(n.left); return visit(n.right);}
+		@Override
+		public Void visitNode(NotNode n) {return visit(n.right);}
+		@Override
+		public Void visitNode(BoolNode n) {return null;}
+		@Override
+		public Void visitNode(IntNode n) {return null;}
+		@Override
+		public Void visitNode(EmptyNode n) {return null;}
+		@Override
+		public Void visitNode(NewNode n) {visit(n.argList); return null;}
+
+		@Override
+		public Void visitNode(IdNode n) {
+			use(variable(n.nl-n.entry.nl, n.entry));
+			return null;
+		}
+
+		@Override
+		public Void visitNode(CallNode n) {
+			Object scope = scope(n.nl-n.entry.nl);
+			if (scope instanceof ClassInfo) use(((ClassInfo) scope).self); // sibling method
+			else current().callees.add(nestedFunction((Function) scope, n.entry));
+			visit(n.arglist);
+			return null;
+		}
+
+		@Override
+		public Void visitNode(ClassCallNode n) {
+			use(variable(n.nestingLevel-n.entry.nl, n.entry));
+			visit(n.argList);
+			return null;
+		}
+	}
+
+	// adds to the variables needed by each function those needed by the functions it calls
+	private void closeFreeVariables() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Function f : functions.values())
+				for (Function g : f.callees)
+					for (Var v : new ArrayList<>(g.free)) if (!f.defines(v)) changed |= f.free.add(v);
+		}
+	}
+
+	// code generation
+
+	private Code code() {
+		return current().code;
+	}
+
+	private void load(Var v) {
+		code().local(v.desc.equals("I") ? ILOAD : ALOAD, current().slots.get(v));
+	}
+
+	private int newLocal() {
+		return current().locals++;
+	}
+
+	private static int returnOpcode(String desc) {
+		return desc.equals("I") ? IRETURN : ARETURN;
+	}
+
+	/**
+	 * Pushes the arguments of a call. As in CodeGenerationASTVisitor they are
+	 * evaluated from the last one, into locals when more than one.
+	 */
+	private void arguments(List<Node> args, List<TypeNode> parTypes) {
+		if (args.size() == 1) visit(args.get(0));
+		if (args.size() <= 1) return;
+		int first = current().locals;
+		current().locals += args.size();
+		for (int i = args.size()-1; i >= 0; i--) {
+			visit(args.get(i));
+			code().local(desc(parTypes.get(i)).equals("I") ? ISTORE : ASTORE, first+i);
+		}
+		for (int i = 0; i < args.size(); i++) code().local(desc(parTypes.get(i)).equals("I") ? ILOAD : ALOAD, first+i);
+		current().locals = first;
+	}
+
+	// pushes 1 if the two ints on the stack do not satisfy jumpIfFalse, 0 otherwise
+	private void bool(int jumpIfFalse) {
+		Label f = code().label(), end = code().label();
+		code().jump(jumpIfFalse, f);
+		code().intConst(1);
+		code().jump(GOTO, end);
+		code().mark(f);
+		code().intConst(0);
+		code().mark(end);
+	}
+
+	// whether the value of an expression is an object (or null)
+	private static boolean isRef(Node n) {
+		if (n instanceof NewNode || n instanceof EmptyNode) return true;
+		if (n instanceof IdNode) return ((IdNode) n).entry.type instanceof RefTypeNode;
+		if (n instanceof CallNode) return ((ArrowTypeNode) ((CallNode) n).entry.type).ret instanceof RefTypeNode;
+		if (n instanceof ClassCallNode) return ((ArrowTypeNode) ((ClassCallNode) n).methodEntry.type).ret instanceof RefTypeNode;
+		if (n instanceof IfNode) return isRef(((IfNode) n).th) || isRef(((IfNode) n).el);
+		if (n instanceof PrintNode) return isRef(((PrintNode) n).exp);
+		return false;
+	}
+
+	// generates the JVM method of a function or method, with its parameters and locals
+	private void function(Function f, ClassWriter writer) {
+		FunNode n = f.node;
+		f.code = writer.method(f.method ? 0 : ACC_STATIC, f.name, f.descriptor());
+		if (f.method) f.slots.put(f.cls.self, f.locals++);
+		else for (Var v : f.free) f.slots.put(v, f.locals++);
+		for (int i = 0; i < n.parlist.size(); i++) f.slots.put(f.var(i+1, n.parlist.get(i).getType()), f.locals++);
+		scopes.add(f);
+		for (int k = 0; k < n.declist.size(); k++) {
+			DecNode dec = n.declist.get(k);
+			if (dec instanceof FunNode) {
+				visit(dec);
+				continue;
+			}
+			Var v = f.var(-2-k, dec.getType());
+			f.slots.put(v, f.locals++);
+			visit(dec);
+			f.code.local(v.desc.equals("I") ? ISTORE : ASTORE, f.slots.get(v));
+		}
+		visit(n.exp);
+		f.code.op(returnOpcode(desc(n.retType)));
+		scopes.remove(scopes.size()-1);
+	}
+
+	@Override
+	public Void visitNode(ProgLetInNode n) {
+		if (print) printNode(n);
+		Function main = new Function(null, n.declist, null, programName, "main", false);
+		scopes.add(main);
+		FreeVariables freeVariables = new FreeVariables();
+		for (Node dec : n.declist) freeVariables.visit(dec);
+		freeVariables.visit(n.exp);
+		closeFreeVariables();
+
+		programWriter = new ClassWriter(programName, "java/lang/Object");
+		main.code = programWriter.method(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V");
+		main.locals = 1;
+		for (DecNode dec : n.declist) {
+			visit(dec);
+			if (dec instanceof VarNode) {
+				String id = ((VarNode) dec).id;
+				programWriter.field(ACC_STATIC, id, desc(dec.getType()));
+				main.code.field(PUTSTATIC, programName, id, desc(dec.getType()));
+			}
+		}
+		visit(n.exp);
+		main.code.op(POP);
+		main.code.op(RETURN);
+		scopes.remove(scopes.size()-1);
+		classFiles.put(programName, programWriter.toByteArray());
+		return null;
+	}
+
+	@Override
+	public Void visitNode(ProgNode n) {
+		if (print) printNode(n);
+		scopes.add(new Function(null, Collections.emptyList(), null, programName, "main", false));
+		programWriter = new ClassWriter(programName, "java/lang/Object");
+		current().code = programWriter.method(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V");
+		current().locals = 1;
+		visit(n.exp);
+		code().op(POP);
+		code().op(RETURN);
+		scopes.remove(scopes.size()-1);
+		classFiles.put(programName, programWriter.toByteArray());
+		return null;
+	}
+
+	@Override
+	public Void visitNode(FunNode n) {
+		if (print) printNode(n,n.id);
+		Function f = functions.get(n);
+		function(f, f.cls == null ? programWriter : classWriters.get(f.cls));
+		return null;
+	}
+
+	@Override
+	public Void visitNode(VarNode n) {
+		if (print) printNode(n,n.id);
+		return visit(n.exp);
+	}
+
+	@Override
+	public Void visitNode(PrintNode n) {
+		if (print) printNode(n);
+		visit(n.exp);
+		code().op(DUP);
+		code().field(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+		code().op(SWAP);
+		code().invoke(INVOKEVIRTUAL, "java/io/PrintStream", "println", isRef(n.exp) ? "(Ljava/lang/Object;)V" : "(I)V");
+		return null;
+	}
+
+	@Override
+	public Void visitNode(IfNode n) {
+		if (print) printNode(n);
+		Label el = code().label(), end = code().label();
+		visit(n.cond);
+		code().jump(IFEQ, el);
+		visit(n.th);
+		code().jump(GOTO, end);
+		code().mark(el);
+		visit(n.el);
+		code().mark(end);
+		return null;
+	}
+
+	@Override
+	public Void visitNode(EqualNode n) {
+		if (print) printNode(n);
+		visit(n.left);
+		visit(n.right);
+		bool(isRef(n.left) || isRef(n.right) ? IF_ACMPNE : IF_ICMPNE);
+		return null;
+	}
+
+	@Override
+	public Void visitNode(GreaterEqualNode n) {
+		if (print) printNode(n);
+		visit(n.right);
+		visit(n.left);
+		bool(IF_ICMPGT); // right <= left
+		return null;
+	}
+
+	@Override
+	public Void visitNode(LessEqualNode n) {
+		if (print) printNode(n);
+		visit(n.left);
+		visit(n.right);
+		bool(IF_ICMPGT);
+		return null;
+	}
+
+	private Void binary(Node left, Node right, int opcode) {
+		visit(left);
+		visit(right);
+		code().op(opcode);
+		return null;
+	}
+
+	@Override
+	public Void visitNode(TimesNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, IMUL);
+	}
+
+	@Override
+	public Void visitNode(DivNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, IDIV);
+	}
+
+	@Override
+	public Void visitNode(PlusNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, IADD);
+	}
+
+	@Override
+	public Void visitNode(MinusNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, ISUB);
+	}
+
+	@Override
+	public Void visitNode(AndNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, IAND); // bool values are 0 or 1
+	}
+
+	@Override
+	public Void visitNode(OrNode n) {
+		if (print) printNode(n);
+		return binary(n.left, n.right, IOR);
+	}
+
+	@Override
+	public Void visitNode(NotNode n) {
+		if (print) printNode(n);
+		visit(n.right);
+		code().intConst(1);
+		code().op(IXOR);
+		return null;
+	}
+
+	@Override
+	public Void visitNode(BoolNode n) {
+		if (print) printNode(n,n.val.toString());
+		code().intConst(n.val?1:0);
+		return null;
+	}
+
+	@Override
+	public Void visitNode(IntNode n) {
+		if (print) printNode(n,n.val.toString());
+		code().intConst(n.val);
+		return null;
+	}
+
+	@Override
+	public Void visitNode(EmptyNode n) {
+		if (print) printNode(n);
+		code().op(ACONST_NULL);
+		return null;
+	}
+
+	// pushes the value of the identifier id "depth" scopes up
+	private void read(int depth, STentry entry, String id) {
+		Object scope = scope(depth);
+		if (scope instanceof ClassInfo) { // field of the object
+			ClassInfo c = (ClassInfo) scope;
+			load(c.self);
+			code().field(GETFIELD, c.name, id, desc(entry.type));
+		} else if (((Function) scope).node == null) {
+			code().field(GETSTATIC, programName, id, desc(entry.type));
+		} else {
+			load(variable(depth, entry));
+		}
+	}
+
+	@Override
+	public Void visitNode(IdNode n) {
+		if (print) printNode(n,n.id);
+		read(n.nl-n.entry.nl, n.entry, n.id);
+		return null;
+	}
+
+	@Override
+	public Void visitNode(CallNode n) {
+		if (print) printNode(n,n.id);
+		ArrowTypeNode t = (ArrowTypeNode) n.entry.type;
+		Object scope = scope(n.nl-n.entry.nl);
+		if (scope instanceof ClassInfo) { // sibling method, called on the object
+			ClassInfo c = (ClassInfo) scope;
+			load(c.self);
+			arguments(n.arglist, t.parlist);
+			code().invoke(INVOKEVIRTUAL, c.name, n.id, desc(t));
+		} else {
+			Function g = nestedFunction((Function) scope, n.entry);
+			for (Var v : g.free) load(v);
+			arguments(n.arglist, t.parlist);
+			code().invoke(INVOKESTATIC, g.owner, g.name, g.descriptor());
+		}
+		return null;
+	}
+
+	// OOP
+
+	@Override
+	public Void visitNode(ClassNode n) {
+		if (print) printNode(n);
+		ClassInfo c = classes.get(n.id);
+		String superName = c.superclass == null ? "java/lang/Object" : c.superclass.name;
+		ClassWriter writer = new ClassWriter(ACC_PUBLIC | ACC_SUPER, c.name, superName);
+		classWriters.put(c, writer);
+
+		int inherited = c.superclass == null ? 0 : c.superclass.fieldCount();
+		for (FieldNode field : n.fields)
+			if (-1-field.offset >= inherited) writer.field(0, field.id, desc(field.getType()));
+
+		Code init = writer.method(0, "<init>", constructorDesc(c.type, c.fieldCount()));
+		init.local(ALOAD, 0);
+		for (int i = 0; i < inherited; i++) init.local(desc(c.type.allFields.get(i)).equals("I") ? ILOAD : ALOAD, i+1);
+		init.invoke(INVOKESPECIAL, superName, "<init>", c.superclass == null ? "()V" : constructorDesc(c.superclass.type, inherited));
+		for (FieldNode field : n.fields) {
+			int i = -1-field.offset;
+			if (i < inherited) continue; // overridden, set by the superclass constructor
+			init.local(ALOAD, 0);
+			init.local(desc(field.getType()).equals("I") ? ILOAD : ALOAD, i+1);
+			init.field(PUTFIELD, c.name, field.id, desc(field.getType()));
+		}
+		init.op(RETURN);
+
+		scopes.add(c);
+		for (MethodNode method : n.methods) visit(method);
+		scopes.remove(scopes.size()-1);
+		classFiles.put(c.name, writer.toByteArray());
+		return null;
+	}
+
+	@Override
+	public Void visitNode(MethodNode n) {
+		if (print) printNode(n, n.id);
+		function(functions.get(n), classWriters.get((ClassInfo) scope(0)));
+		return null;
+	}
+
+	@Override
+	public Void visitNode(ClassCallNode n) {
+		if (print) printNode(n, n.classId);
+		ArrowTypeNode t = (ArrowTypeNode) n.methodEntry.type;
+		String className = classes.get(((RefTypeNode) n.entry.type).classId).name;
+		read(n.nestingLevel-n.entry.nl, n.entry, n.classId);
+		code().type(CHECKCAST, className);
+		arguments(n.argList, t.parlist);
+		code().invoke(INVOKEVIRTUAL, className, n.methodId, desc(t));
+		return null;
+	}
+
+	@Override
+	public Void visitNode(NewNode n) {
+		if (print) printNode(n, n.classId);
+		ClassInfo c = classes.get(n.classId);
+		code().type(NEW, c.name);
+		code().op(DUP);
+		for (Node arg : n.argList) visit(arg);
+		code().invoke(INVOKESPECIAL, c.name, "<init>", constructorDesc(c.type, c.fieldCount()));
+		return null;
+	}
+}
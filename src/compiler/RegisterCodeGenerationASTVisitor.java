@@ -0,0 +1,457 @@
+package compiler;
+
+import compiler.AST.*;
+import compiler.lib.*;
+import compiler.exc.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static compiler.lib.FOOLlib.*;
+
+/**
+ * Code generation for the register machine (svm.RegisterVM), alternative to
+ * CodeGenerationASTVisitor. Registers are numbered from $fp as described in RVM.g4:
+ * parameters keep their offset, local declarations (offsets -2, -3, ...) move one word
+ * down to leave room for the Control Link at -2, and expression temporaries are
+ * allocated per function below the locals, as a stack that every expression frees
+ * when it is done. Each visit leaves in "reg" the register holding the value of the
+ * expression: identifiers of the current frame just name their register, the other
+ * expressions write into "target" when the parent asks for a destination register.
+ * Operands are evaluated in the same order as in the stack machine code.
+ */
+public class RegisterCodeGenerationASTVisitor extends BaseASTVisitor<String, VoidException> {
+
+	private static final int NONE = Integer.MIN_VALUE;
+
+	private List<List<String>> dispatchTables = new ArrayList<>();
+	private int reg;             // register holding the value of the last visited expression
+	private int target = NONE;   // register where the visited expression should leave its value, if any
+	private int next;            // next free temporary of the current function
+	private int nestingLevel = 0;
+	private boolean inClass;     // visiting methods: entries at nesting level 1 are fields and methods
+
+	RegisterCodeGenerationASTVisitor() {}
+	RegisterCodeGenerationASTVisitor(boolean debug) {super(false,debug);} //enables print for debugging
+
+	// register of a parameter or local declaration, offset from the object for a field
+	private int slot(STentry entry) {
+		if (inClass && entry.nl == 1) return entry.offset;
+		return entry.offset > 0 ? entry.offset : entry.offset-1;
+	}
+
+	private int temp() {
+		return next--;
+	}
+
+	// destination of the value of the current node: the requested one or a new temporary
+	private int result() {
+		int d = target == NONE ? temp() : target;
+		target = NONE;
+		return d;
+	}
+
+	private String eval(Node n) {
+		return evalInto(n, NONE);
+	}
+
+	private String evalInto(Node n, int d) {
+		target = d;
+		String code = visit(n);
+		target = NONE;
+		if (d != NONE && reg != d) {
+			code = nlJoin(code, "mov "+d+" "+reg);
+			reg = d;
+		}
+		return code;
+	}
+
+	// code of the declarations of a frame, each evaluated into its register
+	private String declarations(List<DecNode> declist) {
+		String declCode = null;
+		for (int k = 0; k < declist.size(); k++) {
+			declCode = nlJoin(declCode, evalInto(declist.get(k), -3-k));
+			next = -3-declist.size();
+		}
+		return declCode;
+	}
+
+	@Override
+	public String visitNode(ProgLetInNode n) {
+		if (print) printNode(n);
+		next = -3-n.declist.size();
+		return nlJoin(
+			declarations(n.declist),
+			eval(n.exp),
+			"halt",
+			getCode()
+		);
+	}
+
+	@Override
+	public String visitNode(ProgNode n) {
+		if (print) printNode(n);
+		next = -3;
+		return nlJoin(
+			eval(n.exp),
+			"halt"
+		);
+	}
+
+	// code of a function or method: declarations, body, and ret with the result register
+	private String function(String label, List<DecNode> declist, Node exp) {
+		int prevNext = next;
+		nestingLevel++;
+		next = -3-declist.size();
+		String code = nlJoin(
+			label+":",
+			declarations(declist),
+			eval(exp)
+		);
+		code = nlJoin(code, "ret "+reg); // result to register 0, restore $fp (Control Link) and jump back
+		nestingLevel--;
+		next = prevNext;
+		return code;
+	}
+
+	@Override
+	public String visitNode(FunNode n) {
+		if (print) printNode(n,n.id);
+		int d = result();
+		String funl = freshFunLabel();
+		putCode(function(funl, n.declist, n.exp));
+		reg = d;
+		return "li "+d+" "+funl;
+	}
+
+	@Override
+	public String visitNode(VarNode n) {
+		if (print) printNode(n,n.id);
+		return evalInto(n.exp, result());
+	}
+
+	@Override
+	public String visitNode(PrintNode n) {
+		if (print) printNode(n);
+		String code = eval(n.exp);
+		return nlJoin(
+			code,
+			"print "+reg
+		);
+	}
+
+	@Override
+	public String visitNode(IfNode n) {
+		if (print) printNode(n);
+		int d = result();
+		int mark = next;
+	 	String l1 = freshLabel();
+	 	String l2 = freshLabel();
+		String condCode;
+		if (n.cond instanceof EqualNode)
+			condCode = compareAndBranch("beq", ((EqualNode) n.cond).left, ((EqualNode) n.cond).right, l1);
+		else if (n.cond instanceof LessEqualNode)
+			condCode = compareAndBranch("bleq", ((LessEqualNode) n.cond).left, ((LessEqualNode) n.cond).right, l1);
+		else if (n.cond instanceof GreaterEqualNode) // right <= left, right evaluated first
+			condCode = compareAndBranch("bleq", ((GreaterEqualNode) n.cond).right, ((GreaterEqualNode) n.cond).left, l1);
+		else
+			condCode = nlJoin(eval(n.cond), "bnz "+reg+" "+l1);
+		next = mark;
+		String elCode = evalInto(n.el, d);
+		next = mark;
+		String thCode = evalInto(n.th, d);
+		next = mark;
+		reg = d;
+		return nlJoin(
+			condCode,
+			elCode,
+			"b "+l2,
+			l1+":",
+			thCode,
+			l2+":"
+		);
+	}
+
+	// evaluates left and right in this order and jumps to label if "left op right"
+	private String compareAndBranch(String op, Node left, Node right, String label) {
+		String code = eval(left);
+		int a = reg;
+		code = nlJoin(code, eval(right));
+		return nlJoin(code, op+" "+a+" "+reg+" "+label);
+	}
+
+	// d = left op right, evaluating left first
+	private String binary(String op, Node left, Node right) {
+		int d = result();
+		int mark = next;
+		String code = eval(left);
+		int a = reg;
+		code = nlJoin(code, eval(right));
+		String instruction = op+" "+d+" "+a+" "+reg;
+		next = mark;
+		reg = d;
+		return nlJoin(code, instruction);
+	}
+
+	// d = operand + k
+	private String addImmediate(Node operand, int k) {
+		int d = result();
+		int mark = next;
+		String code = eval(operand);
+		next = mark;
+		String add = "addi "+d+" "+reg+" "+k;
+		reg = d;
+		return nlJoin(code, add);
+	}
+
+	@Override
+	public String visitNode(EqualNode n) {
+		if (print) printNode(n);
+		return binary("eq", n.left, n.right);
+	}
+
+    @Override
+    public String visitNode(GreaterEqualNode n) {
+        if (print) printNode(n);
+        return binary("le", n.right, n.left); // right <= left, right evaluated first
+    }
+
+    @Override
+    public String visitNode(LessEqualNode n) {
+        if (print) printNode(n);
+        return binary("le", n.left, n.right);
+    }
+
+	@Override
+	public String visitNode(TimesNode n) {
+		if (print) printNode(n);
+		return binary("mult", n.left, n.right);
+	}
+
+	@Override
+	public String visitNode(DivNode n) {
+		if (print) printNode(n);
+		return binary("div", n.left, n.right);
+	}
+
+	@Override
+	public String visitNode(PlusNode n) {
+		if (print) printNode(n);
+		if (n.right instanceof IntNode) return addImmediate(n.left, ((IntNode) n.right).val);
+		return binary("add", n.left, n.right);
+	}
+
+	@Override
+	public String visitNode(MinusNode n) {
+		if (print) printNode(n);
+		if (n.right instanceof IntNode) return addImmediate(n.left, -((IntNode) n.right).val);
+		return binary("sub", n.left, n.right);
+	}
+
+	@Override
+	public String visitNode(CallNode n) {
+		if (print) printNode(n,n.id);
+		int c = next-n.arglist.size(); // Access Link, arguments above it
+		next = c-1;
+		String argCode = null;
+		for (int i=n.arglist.size()-1;i>=0;i--) { // argument expressions in reversed order
+			argCode = nlJoin(argCode, evalInto(n.arglist.get(i), c+1+i));
+			next = c-1;
+		}
+		reg = c; // the callee leaves the result in the Access Link register
+		return nlJoin(
+			argCode,
+			frameAddressInto(nestingLevel-n.entry.nl, c), // frame containing "id" declaration
+			"call "+c+" "+slot(n.entry) // jump to address of "id" function, loaded from that frame
+		);
+	}
+
+	@Override
+	public String visitNode(IdNode n) {
+		if (print) printNode(n,n.id);
+		int depth = nestingLevel-n.entry.nl;
+		if (depth == 0) {
+			reg = slot(n.entry); // register of the current frame
+			return null;
+		}
+		return frameWordInto(depth, slot(n.entry), result());
+	}
+
+	// code putting in d the address of the frame "depth" steps up the static chain (of Access Links)
+	private static String frameAddressInto(int depth, int d) {
+		if (depth == 0) return "lfp "+d;
+		if (depth == 1) return "mov "+d+" 0";
+		String code = "lw "+d+" 0 0";
+		for (int i = 2;i<depth;i++) code=nlJoin(code,"lw "+d+" "+d+" 0");
+		return code;
+	}
+
+	// code putting in d the word at offset of the frame "depth" (at least 1) steps up the static chain
+	private String frameWordInto(int depth, int offset, int d) {
+		reg = d;
+		int frame = 0; // register holding the address of the frame, the Access Link at first
+		String code = null;
+		for (int i = 1;i<depth;i++) {
+			code=nlJoin(code,"lw "+d+" "+frame+" 0");
+			frame = d;
+		}
+		return nlJoin(code, "lw "+d+" "+frame+" "+offset);
+	}
+
+	@Override
+	public String visitNode(BoolNode n) {
+		if (print) printNode(n,n.val.toString());
+		int d = result();
+		reg = d;
+		return "li "+d+" "+(n.val?1:0);
+	}
+
+	@Override
+	public String visitNode(IntNode n) {
+		if (print) printNode(n,n.val.toString());
+		int d = result();
+		reg = d;
+		return "li "+d+" "+n.val;
+	}
+
+    @Override
+    public String visitNode(AndNode n) {
+        if (print) printNode(n);
+        return binary("and", n.left, n.right);
+    }
+
+    @Override
+    public String visitNode(OrNode n) {
+        if (print) printNode(n);
+        return binary("or", n.left, n.right);
+    }
+
+	@Override
+	public String visitNode(NotNode n) {
+		if (print) printNode(n);
+		int d = result();
+		int mark = next;
+		String code = eval(n.right);
+		next = mark;
+		String not = "not "+d+" "+reg;
+		reg = d;
+		return nlJoin(code, not);
+	}
+
+    // OOP
+
+    /**
+     * Builds the dispatch table as CodeGenerationASTVisitor does, then loads the method
+     * labels in consecutive registers (the first one lowest) and copies them to the heap
+     * with a single alloc, leaving the dispatch table address in the register of the class.
+     */
+	@Override
+	public String visitNode(ClassNode n) {
+		if (print) printNode(n);
+		int d = result();
+
+		List<String> dispatchTable = new ArrayList<String>();
+		if (n.superId != null && n.superEntry != null) {
+			int superPos = -n.superEntry.offset - 2;
+			if (superPos >= 0 && superPos < dispatchTables.size()) {
+				dispatchTable = new ArrayList<>(dispatchTables.get(superPos));
+			}
+		}
+
+		inClass = true;
+		nestingLevel++;
+		for (MethodNode method : n.methods) {
+			visit(method);
+			while (dispatchTable.size() <= method.offset) dispatchTable.add(null);
+			dispatchTable.set(method.offset, method.label);
+		}
+		nestingLevel--;
+		inClass = false;
+
+		dispatchTables.add(dispatchTable);
+
+		int mark = next;
+		int base = next-dispatchTable.size()+1;
+		String code = null;
+		for (int i = 0; i < dispatchTable.size(); i++) code = nlJoin(code, "li "+(base+i)+" "+dispatchTable.get(i));
+		next = mark;
+		reg = d;
+		return nlJoin(code, "alloc "+d+" "+base+" "+dispatchTable.size());
+	}
+
+    @Override
+    public String visitNode(MethodNode n) {
+        if (print) printNode(n, n.id);
+        n.label = freshFunLabel();
+        putCode(function(n.label, n.declist, n.exp));
+        return null;
+    }
+
+    @Override
+    public String visitNode(ClassCallNode n) {
+        if (print) printNode(n, n.classId);
+
+        if (n.methodEntry == null) {
+            System.err.println("Errore: methodEntry non definito per il metodo " + n.methodId);
+            int d = result();
+            reg = d;
+            return "li " + d + " -1"; // return error
+        }
+
+        int c = next - n.argList.size(); // object pointer as Access Link, arguments above it
+        next = c - 1;
+        String argCode = null;
+        for (int i = n.argList.size() - 1; i >= 0; i--) {
+            argCode = nlJoin(argCode, evalInto(n.argList.get(i), c + 1 + i));
+            next = c - 1;
+        }
+        int depth = nestingLevel - n.entry.nl;
+        int t = temp();
+        next = c - 1;
+        reg = c;
+        return nlJoin(
+                argCode,
+                depth == 0 ? "mov " + c + " " + slot(n.entry) : frameWordInto(depth, slot(n.entry), c), // object pointer
+                "lw " + t + " " + c + " 0",                        // dispatch pointer
+                "lw " + t + " " + t + " " + n.methodEntry.offset,  // method address
+                "callr " + c + " " + t
+        );
+    }
+
+	@Override
+	public String visitNode(NewNode n) {
+		if (print) printNode(n, n.classId);
+		int d = result();
+		int mark = next;
+		int size = n.argList.size();
+		int base = next-size+1; // the first argument in the highest register, like the stack machine
+		next = base-1;
+		String argCode = null;
+		for (int i = 0; i < size; i++) {
+			argCode = nlJoin(argCode, evalInto(n.argList.get(i), base+size-1-i));
+			next = base-1;
+		}
+		int p = slot(n.entry); // dispatch pointer, from the global declaration of the class
+		String dispatchCode = null;
+		if (nestingLevel > 0) {
+			int t = temp();
+			dispatchCode = "lwg "+t+" "+p;
+			p = t;
+		}
+		next = mark;
+		reg = d;
+		return nlJoin(
+				argCode,
+				dispatchCode,
+				"new "+d+" "+base+" "+size+" "+p // copy fields and dispatch pointer to heap, object address to d
+		);
+	}
+
+	@Override
+	public String visitNode(EmptyNode n) {
+		if (print) printNode(n);
+		int d = result();
+		reg = d;
+		return "li "+d+" -1";
+	}
+}
@@ -1,6 +1,8 @@
 package compiler;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.*;
 import compiler.lib.*;
@@ -11,6 +13,15 @@ public class Test {
     public static void main(String[] args) throws Exception {
    			
     	String fileName = "bankloan.fool";
+    	ExecuteVM.Engine engine = ExecuteVM.Engine.SWITCH; // THREADED, TOS or TIERED for the alternative engines
+    	ExecuteVM.Heap heap = ExecuteVM.Heap.COLLECTED;    // COUNTED to free objects by reference counting
+    	boolean registerMachine = false; // true to compile for RegisterVM instead of the stack machine
+    	boolean astInterpreter = false;  // true to run the enriched AST directly with ASTInterpreter
+    	boolean jvmClasses = false;      // true to compile to JVM class files and run them on the JVM
+    	boolean cCode = false;           // true to compile to C, then to a native executable with gcc
+    	boolean binary = false;          // true to save the assembled code as a binary executable and run it from there
+    	boolean assembly = false;        // true to write the assembly to fileName.asm and assemble it, for debugging
+    	boolean snapshot = false;        // true to save the state of the VM after the declarations to fileName.snap, and to run again from there
 
     	CharStream chars = CharStreams.fromFileName(fileName);
     	FOOLLexer lexer = new FOOLLexer(chars);
@@ -54,29 +65,156 @@ public class Test {
 		
 		if ( frontEndErrors > 0) System.exit(1);   
 
+    	if (astInterpreter) {
+    		System.out.println("Running enriched AST via AST interpreter.");
+    		new ASTInterpreter().run(ast);
+    		return;
+    	}
+
+    	if (registerMachine) {
+    		runOnRegisterMachine(ast, fileName);
+    		return;
+    	}
+
+    	if (jvmClasses) {
+    		runOnJVM(ast, fileName);
+    		return;
+    	}
+
+    	if (cCode) {
+    		runNative(ast, fileName);
+    		return;
+    	}
+
+    	int[] code;
+    	Set<Integer> labelRefs;
+    	Map<String,Integer> codeLabels;
+    	Map<Integer,Integer> codeLines;
     	System.out.println("Generating code.");
-    	String code = new CodeGenerationASTVisitor().visit(ast);        
-    	BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".asm")); 
+    	if (assembly) {
+    		TextEmitter text = new TextEmitter();
+    		new CodeGenerationASTVisitor(text, heap, snapshot).visit(ast);
+    		BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".asm")); 
+    		out.write(text.toString());
+    		out.close(); 
+    		System.out.println("");
+
+    		System.out.println("Assembling generated code.");
+    		Assembler assembler = new Assembler().assemble(Path.of(fileName+".asm")); // same result as SVMLexer and SVMParser, faster
+
+    		// needed only for debug
+    		System.out.println("You had: "+assembler.lexicalErrors+" lexical errors and "+assembler.getNumberOfSyntaxErrors()+" syntax errors.\n");
+    		if (assembler.lexicalErrors+assembler.getNumberOfSyntaxErrors()>0) System.exit(1);
+    		code = assembler.code;
+    		labelRefs = assembler.labelRefs();
+    		codeLabels = assembler.labels();
+    		codeLines = assembler.lines();
+    	} else {
+    		CodeEmitter emitter = new CodeEmitter(); // the code as SVMParser would assemble it, without the text
+    		new CodeGenerationASTVisitor(emitter, heap, snapshot).visit(ast);
+    		System.out.println("");
+    		code = emitter.code();
+    		labelRefs = emitter.labelRefs();
+    		codeLabels = emitter.labels();
+    		codeLines = Map.of();
+    	}
+
+    	System.out.println("Fusing superinstructions.\n");
+    	Fusion fusion = new Fusion(EnumSet.allOf(Superinstruction.class));
+    	int[] fusedCode = fusion.fuse(code, labelRefs);
+
+    	System.out.println("Verifying code.");
+    	Verifier verifier = null;
+    	try {
+    		verifier = Verifier.verify(fusedCode, fusion.labelRefs());
+    		System.out.println("Stack: "+verifier.maxStack(0)+" words for the main program, "+verifier.maxFrame()+" for a call.\n");
+    	} catch (IllegalArgumentException e) {
+    		System.out.println("Verification failed: "+e.getMessage());
+    		System.exit(1);
+    	}
+
+    	ExecuteVM vm;
+    	if (binary) {
+    		System.out.println("Writing binary executable.\n");
+    		Map<String,Integer> labels = new HashMap<>();
+    		codeLabels.forEach((label, address) -> labels.put(label, fusion.newAddress(address)));
+    		Map<Integer,Integer> lines = new TreeMap<>();
+    		codeLines.forEach((address, line) -> lines.putIfAbsent(fusion.newAddress(address), line)); // first line of a fused run
+    		new Executable(fusedCode, heap, fusion.labelRefs(), labels, lines).write(Path.of(fileName+".svmx"));
+    		vm = ExecuteVM.load(Path.of(fileName+".svmx"), engine); // verified again, with the labelRefs saved in the file
+    	} else {
+    		vm = new ExecuteVM(fusedCode, engine, heap, verifier); // verified once, with the labelRefs
+    	}
+
+    	System.out.println("Running generated code via Stack Virtual Machine.");
+    	if (snapshot) vm.checkpointTo(Path.of(fileName+".snap"));
+    	vm.cpu();
+
+    	if (snapshot) {
+    		System.out.println("\nRunning again from the snapshot.");
+    		ExecuteVM.restore(Path.of(fileName+".snap"), engine).cpu();
+    	}
+
+    }
+
+    private static void runOnRegisterMachine(Node ast, String fileName) throws Exception {
+    	System.out.println("Generating register machine code.");
+    	String code = new RegisterCodeGenerationASTVisitor().visit(ast);
+    	BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".rasm"));
     	out.write(code);
-    	out.close(); 
+    	out.close();
     	System.out.println("");
 
     	System.out.println("Assembling generated code.");
-    	CharStream charsASM = CharStreams.fromFileName(fileName+".asm");
-    	SVMLexer lexerASM = new SVMLexer(charsASM);
-    	CommonTokenStream tokensASM = new CommonTokenStream(lexerASM);
-    	SVMParser parserASM = new SVMParser(tokensASM);
+    	RVMLexer lexerASM = new RVMLexer(CharStreams.fromFileName(fileName+".rasm"));
+    	RVMParser parserASM = new RVMParser(new CommonTokenStream(lexerASM));
 
     	parserASM.assembly();
 
-    	// needed only for debug
     	System.out.println("You had: "+lexerASM.lexicalErrors+" lexical errors and "+parserASM.getNumberOfSyntaxErrors()+" syntax errors.\n");
     	if (lexerASM.lexicalErrors+parserASM.getNumberOfSyntaxErrors()>0) System.exit(1);
 
-    	System.out.println("Running generated code via Stack Virtual Machine.");
-    	ExecuteVM vm = new ExecuteVM(parserASM.code);
+    	System.out.println("Running generated code via Register Virtual Machine.");
+    	RegisterVM vm = new RegisterVM(parserASM.code);
     	vm.cpu();
+    	System.out.println("Executed "+vm.executed()+" instructions.");
+    }
+
+    // writes the classes to directory fileName+".classes", to be run with java -cp <directory> <program name>
+    private static void runOnJVM(Node ast, String fileName) throws Exception {
+    	String programName = new File(fileName).getName().replaceFirst("\\.fool$", "").replaceAll("\\W", "_");
+    	System.out.println("Generating JVM classes.");
+    	JVMCodeGenerationASTVisitor generator = new JVMCodeGenerationASTVisitor(programName);
+    	generator.visit(ast);
+    	File dir = new File(fileName+".classes");
+    	dir.mkdirs();
+    	for (Map.Entry<String,byte[]> c : generator.classFiles().entrySet()) {
+    		OutputStream out = new FileOutputStream(new File(dir, c.getKey()+".class"));
+    		out.write(c.getValue());
+    		out.close();
+    	}
+    	System.out.println("");
+
+    	System.out.println("Running generated classes via the JVM.");
+    	java.net.URLClassLoader loader = new java.net.URLClassLoader(new java.net.URL[] {dir.toURI().toURL()});
+    	loader.loadClass(programName).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+    }
+
+    private static void runNative(Node ast, String fileName) throws Exception {
+    	System.out.println("Generating C code.");
+    	String code = new CCodeGenerationASTVisitor().visit(ast);
+    	BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".c"));
+    	out.write(code);
+    	out.close();
+    	System.out.println("");
+
+    	System.out.println("Compiling generated code with gcc.");
+    	Process gcc = new ProcessBuilder("gcc", "-std=c99", "-O2", "-o", fileName+".out", fileName+".c").inheritIO().start();
+    	if (gcc.waitFor() != 0) System.exit(1);
+    	System.out.println("");
 
+    	System.out.println("Running native executable.");
+    	new ProcessBuilder(new File(fileName+".out").getAbsolutePath()).inheritIO().start().waitFor();
     }
 }
 
@@ -0,0 +1,61 @@
+package svm;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Memory kept in an int[], the default backend of ExecuteVM.
+ */
+final class ArrayMemory extends Memory {
+
+    private final int[] words;
+
+    ArrayMemory(int size) {
+      this(new int[size]);
+    }
+
+    private ArrayMemory(int[] words) {
+      this.words = words;
+    }
+
+    @Override
+    int get(int address) {
+      return words[address];
+    }
+
+    @Override
+    void set(int address, int value) {
+      words[address] = value;
+    }
+
+    @Override
+    int size() {
+      return words.length;
+    }
+
+    @Override
+    void copy(int from, int to, int words) {
+      System.arraycopy(this.words, from, this.words, to, words);
+    }
+
+    @Override
+    Memory resize(int size) {
+      return new ArrayMemory(Arrays.copyOf(words, size));
+    }
+
+    @Override
+    Memory create(int size) {
+      return new ArrayMemory(size);
+    }
+
+    @Override
+    void read(int address, int words, IntBuffer to) {
+      to.put(this.words, address, words);
+    }
+
+    @Override
+    void write(int address, int words, IntBuffer from) {
+      from.get(this.words, address, words);
+    }
+
+}
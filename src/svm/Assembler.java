@@ -0,0 +1,389 @@
+package svm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Hand-written assembler for SVM assembly, a faster alternative to SVMLexer and
+ * SVMParser for large generated programs: it reads the text once, from a Reader or
+ * from a file mapped into memory, and gives the same code, labelRefs, labels and
+ * lines as SVMParser.assembly().
+ * Mnemonics and labels go in one table of symbols (open addressing, no boxing),
+ * label references are kept as pairs of ints and patched at the end.
+ * Errors are counted and reported like ANTLR does: lexical errors for the characters
+ * of no token, one syntax error for a run of unexpected tokens (until the next
+ * token that fits), a missing ':' is assumed after a label and a single unexpected
+ * token in front of the expected one is skipped. A missing operand skips the
+ * instruction (SVMParser stops with an exception there).
+ */
+public class Assembler {
+
+    private static final int EOF = 0, WORD = 1, INTEGER = 2, COL = 3; // token kinds
+
+    public int[] code = new int[ExecuteVM.CODESIZE]; // grows as needed
+    public int lexicalErrors = 0;
+    private int syntaxErrors = 0;
+    private boolean recovering = false; // no error is reported until a token fits again
+    private int i = 0;
+    private int[] lineAt = new int[ExecuteVM.CODESIZE]; // line of the instruction at each address, 0 if none
+    private int lineEnd = 0;
+
+    // symbols: the mnemonics of SVMParser (opcode >= 0), then the labels (opcode -1, address -1 until defined)
+    private char[][] names = new char[128][];
+    private int[] hashes = new int[128], opcodes = new int[128], addresses = new int[128];
+    private int symbols = 0;
+    private int[] table = new int[256]; // symbol+1, 0 for an empty slot
+
+    // label references: code address and symbol
+    private int[] refAt = new int[256], refSymbol = new int[256];
+    private int refs = 0;
+
+    // input: buf[start, pos) is the token being read, the rest up to limit is not read yet
+    private Reader reader; // null when the whole text is in buf
+    private char[] buf;
+    private int start, pos, limit;
+    private int line = 1, column = 0;
+
+    // current token and the next one, once looked at
+    private int kind, value, symbol, tokenLine, tokenColumn;
+    private int nextKind = -1, nextValue, nextSymbol, nextLine, nextColumn;
+
+    public Assembler() {
+      for (int op = 1; op <= SVMParser.VOCABULARY.getMaxTokenType(); op++) {
+        String literal = SVMParser.VOCABULARY.getLiteralName(op);
+        if (literal != null && Character.isLetter(literal.charAt(1))) {
+          String mnemonic = literal.substring(1, literal.length()-1);
+          int s = add(mnemonic.toCharArray(), mnemonic.hashCode(), slot(mnemonic.hashCode()));
+          opcodes[s] = op;
+        }
+      }
+    }
+
+    public Assembler assemble(Reader in) throws IOException {
+      reader = in;
+      buf = new char[1 << 16];
+      run();
+      return this;
+    }
+
+    // the file is mapped and decoded in one go
+    public Assembler assemble(Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        CharBuffer text = StandardCharsets.UTF_8.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        reader = null;
+        buf = text.array();
+        pos = text.arrayOffset() + text.position();
+        limit = text.arrayOffset() + text.limit();
+        run();
+        return this;
+      }
+    }
+
+    public int getNumberOfSyntaxErrors() {
+      return syntaxErrors;
+    }
+
+    // code addresses holding a label
+    public Set<Integer> labelRefs() {
+      Set<Integer> set = new HashSet<>();
+      for (int r = 0; r < refs; r++) set.add(refAt[r]);
+      return set;
+    }
+
+    // address of every label
+    public Map<String,Integer> labels() {
+      Map<String,Integer> map = new HashMap<>();
+      for (int s = 0; s < symbols; s++) if (addresses[s] >= 0) map.put(new String(names[s]), addresses[s]);
+      return map;
+    }
+
+    // source line of every instruction address
+    public Map<Integer,Integer> lines() {
+      Map<Integer,Integer> map = new TreeMap<>();
+      for (int a = 0; a < lineEnd; a++) if (lineAt[a] > 0) map.put(a, lineAt[a]);
+      return map;
+    }
+
+    private void run() throws IOException {
+      advance();
+      if (kind == INTEGER || kind == COL) { // as in ANTLR, only one token can be skipped in front of the first instruction
+        peek();
+        if (nextKind != WORD && nextKind != EOF) {
+          syntaxError("mismatched input '"+text()+"'");
+          while (kind != EOF) advance();
+          return;
+        }
+        syntaxError("extraneous input '"+text()+"'");
+        advance();
+      }
+      while (kind != EOF) {
+        if (kind == WORD) instruction();
+        else { // extraneous input, up to the next instruction
+          syntaxError("extraneous input '"+text()+"'");
+          while (kind != EOF && kind != WORD) advance();
+        }
+      }
+      for (int r = 0; r < refs; r++) {
+        int address = addresses[refSymbol[r]];
+        if (address < 0) throw new IllegalStateException("Undefined label "+new String(names[refSymbol[r]]));
+        code[refAt[r]] = address;
+      }
+    }
+
+    private void instruction() throws IOException {
+      ensure(3);
+      lineAt[i] = tokenLine;
+      lineEnd = Math.max(lineEnd, i+1);
+      int op = opcodes[symbol];
+      if (op < 0) { // label definition
+        int label = symbol;
+        match();
+        if (kind == COL || expect(COL, false)) {
+          if (kind == COL) match();
+          addresses[label] = i;
+        }
+        return;
+      }
+      if (op == SVMParser.PUSH) { // two alternatives, told apart by the operand
+        peek();
+        if (nextKind != INTEGER && !(nextKind == WORD && opcodes[nextSymbol] < 0)) {
+          syntaxError("no viable alternative at input '"+text()+"'");
+          advance();
+          while (kind == INTEGER || kind == COL) advance();
+          return;
+        }
+      }
+      int at = i, refsAt = refs;
+      code[i++] = op;
+      match();
+      for (int w = 1; w < InstructionSet.length(op); w++) {
+        boolean label = op == SVMParser.PUSH ? kind == WORD : InstructionSet.isBranch(op);
+        int expected = label ? WORD : INTEGER;
+        if (!fits(kind, symbol, expected) && !expect(expected, true)) {
+          i = at;
+          refs = refsAt;
+          return;
+        }
+        if (label) reference(i, symbol); else code[i] = value;
+        i++;
+        match();
+      }
+    }
+
+    // recovers from a token that does not fit: skips it if the next one fits, takes a
+    // missing ':' as there if the token can follow it, otherwise leaves the instruction;
+    // true if the current token is now the expected one or the missing ':'
+    private boolean expect(int expected, boolean operand) throws IOException {
+      peek();
+      if (fits(nextKind, nextSymbol, expected)) {
+        syntaxError("extraneous input '"+text()+"'");
+        advance();
+        return true;
+      }
+      syntaxError("missing "+(expected == COL ? "':'" : expected == WORD ? "LABEL" : "INTEGER")+" at '"+text()+"'");
+      if (kind == WORD || kind == EOF) return !operand;
+      while (kind == INTEGER || kind == COL) advance();
+      return false;
+    }
+
+    private boolean fits(int kind, int symbol, int expected) {
+      return kind == expected && (kind != WORD || opcodes[symbol] < 0);
+    }
+
+    private void match() throws IOException {
+      recovering = false;
+      advance();
+    }
+
+    private void syntaxError(String message) {
+      if (recovering) return;
+      recovering = true;
+      syntaxErrors++;
+      System.err.println("line "+tokenLine+":"+tokenColumn+" "+message);
+    }
+
+    private String text() {
+      switch (kind) {
+        case EOF: return "<EOF>";
+        case INTEGER: return Integer.toString(value);
+        case COL: return ":";
+        default: return new String(names[symbol]);
+      }
+    }
+
+    private void reference(int address, int label) {
+      if (refs == refAt.length) {
+        refAt = Arrays.copyOf(refAt, 2*refs);
+        refSymbol = Arrays.copyOf(refSymbol, 2*refs);
+      }
+      refAt[refs] = address;
+      refSymbol[refs++] = label;
+    }
+
+    private void ensure(int words) { // room for the next instruction
+      if (i+words > code.length) code = Arrays.copyOf(code, Math.max(2*code.length, i+words));
+      if (code.length > lineAt.length) lineAt = Arrays.copyOf(lineAt, code.length);
+    }
+
+    // tokens
+
+    private void advance() throws IOException {
+      if (nextKind >= 0) {
+        kind = nextKind; value = nextValue; symbol = nextSymbol; tokenLine = nextLine; tokenColumn = nextColumn;
+        nextKind = -1;
+      } else {
+        lex();
+      }
+    }
+
+    private void peek() throws IOException {
+      if (nextKind >= 0) return;
+      int k = kind, v = value, s = symbol, l = tokenLine, c = tokenColumn;
+      lex();
+      nextKind = kind; nextValue = value; nextSymbol = symbol; nextLine = tokenLine; nextColumn = tokenColumn;
+      kind = k; value = v; symbol = s; tokenLine = l; tokenColumn = c;
+    }
+
+    private void lex() throws IOException {
+      while (true) {
+        start = pos;
+        int c = peekChar();
+        if (c < 0) { kind = EOF; tokenLine = line; tokenColumn = column; return; }
+        if (c == ' ' || c == '\t' || c == '\r') { pos++; column++; continue; }
+        if (c == '\n') { pos++; line++; column = 0; continue; }
+        tokenLine = line;
+        tokenColumn = column;
+        if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z') { word(); return; }
+        if (c == '0') { pos++; column++; kind = INTEGER; value = 0; return; }
+        if (c >= '1' && c <= '9') { integer(); return; }
+        if (c == '-') {
+          pos++;
+          int d = peekChar();
+          if (d >= '1' && d <= '9') { integer(); return; }
+          pos = start;
+        }
+        if (c == ':') { pos++; column++; kind = COL; return; }
+        if (c == '/' && comment()) continue;
+        pos++;
+        column++;
+        lexicalErrors++;
+        System.out.println("Invalid char: "+(char) c+" at line "+tokenLine);
+      }
+    }
+
+    private void word() throws IOException {
+      int hash = 0;
+      for (int c = peekChar(); c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'; c = peekChar()) {
+        hash = 31*hash + c;
+        pos++;
+      }
+      column += pos-start;
+      kind = WORD;
+      symbol = lookup(hash);
+    }
+
+    // -?[1-9][0-9]*, from start
+    private void integer() throws IOException {
+      pos = start;
+      boolean negative = buf[pos] == '-';
+      if (negative) pos++;
+      long n = 0;
+      for (int c = peekChar(); c >= '0' && c <= '9'; c = peekChar()) {
+        n = 10*n + (c - '0');
+        pos++;
+        if (n > 1L << 31) n = 1L << 32; // too large anyway, stop growing
+      }
+      column += pos-start;
+      if (negative) n = -n;
+      if (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE)
+        throw new NumberFormatException("For input string: \""+new String(buf, start, pos-start)+"\"");
+      kind = INTEGER;
+      value = (int) n;
+    }
+
+    // skips a comment from start, false (and nothing skipped) if it is not closed
+    private boolean comment() throws IOException {
+      int l = line, col = column;
+      pos++;
+      if (peekChar() != '*') { pos = start; return false; }
+      pos++;
+      column += 2;
+      for (int c = peekChar(), last = 0; c >= 0; last = c, c = peekChar()) {
+        pos++;
+        if (c == '\n') { line++; column = 0; } else column++;
+        if (last == '*' && c == '/') return true;
+      }
+      pos = start;
+      line = l;
+      column = col;
+      return false;
+    }
+
+    // character at pos, -1 at the end of the input
+    private int peekChar() throws IOException {
+      if (pos < limit) return buf[pos];
+      if (reader == null) return -1;
+      if (start > 0) { // keep only the current token
+        System.arraycopy(buf, start, buf, 0, limit-start);
+        pos -= start;
+        limit -= start;
+        start = 0;
+      }
+      if (limit == buf.length) buf = Arrays.copyOf(buf, 2*buf.length);
+      int n = reader.read(buf, limit, buf.length-limit);
+      if (n <= 0) return -1;
+      limit += n;
+      return buf[pos];
+    }
+
+    // symbols
+
+    // symbol of buf[start, pos), added as a label if new
+    private int lookup(int hash) {
+      int length = pos-start;
+      int mask = table.length-1;
+      for (int s = hash & mask; ; s = (s+1) & mask) {
+        int symbol = table[s]-1;
+        if (symbol < 0) return add(Arrays.copyOfRange(buf, start, pos), hash, s);
+        if (hashes[symbol] == hash && names[symbol].length == length && same(names[symbol])) return symbol;
+      }
+    }
+
+    private boolean same(char[] name) {
+      for (int k = 0; k < name.length; k++) if (name[k] != buf[start+k]) return false;
+      return true;
+    }
+
+    private int slot(int hash) {
+      int mask = table.length-1, s = hash & mask;
+      while (table[s] != 0) s = (s+1) & mask;
+      return s;
+    }
+
+    private int add(char[] name, int hash, int slot) {
+      if (symbols == names.length) {
+        names = Arrays.copyOf(names, 2*symbols);
+        hashes = Arrays.copyOf(hashes, 2*symbols);
+        opcodes = Arrays.copyOf(opcodes, 2*symbols);
+        addresses = Arrays.copyOf(addresses, 2*symbols);
+      }
+      int symbol = symbols++;
+      names[symbol] = name;
+      hashes[symbol] = hash;
+      opcodes[symbol] = -1;
+      addresses[symbol] = -1;
+      table[slot] = symbol+1;
+      if (2*symbols > table.length) { // rehash
+        table = new int[2*table.length];
+        for (int s = 0; s < symbols; s++) table[slot(hashes[s])] = s+1;
+      }
+      return symbol;
+    }
+
+}
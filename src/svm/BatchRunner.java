@@ -0,0 +1,203 @@
+package svm;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs many assembled programs, or many runs of one program, concurrently, each
+ * one in its own ExecuteVM with its output collected (see CollectingOutput).
+ * The code of a program is shared by all its VMs: it is verified, and decoded for
+ * THREADED or compiled for TIERED (see TieredCompiler), once per batch. Only
+ * Executables carry the labelRefs the Verifier needs; bare code runs checked. The
+ * memory of every finished run goes back to a pool and is taken by the next VM
+ * as it is, without clearing (see ExecuteVM), so a steady batch allocates no
+ * memory. Runs go to an ExecutorService: by default a pool of one thread per
+ * core; on a JDK with virtual threads Executors.newVirtualThreadPerTaskExecutor()
+ * can be passed instead.
+ * Each run is timed from the creation of its VM to the end of cpu(), and the
+ * batch reports the distribution of these times (see Report).
+ */
+public final class BatchRunner implements AutoCloseable {
+
+    // the outcome of one run: the values it printed, and the exception that stopped it, if any
+    public static final class Result {
+      public final int index;    // position of the program (or of the run) in the batch
+      public final int[] output;
+      public final Throwable error; // null if the program halted
+      public final long nanos;
+
+      Result(int index, int[] output, Throwable error, long nanos) {
+        this.index = index;
+        this.output = output;
+        this.error = error;
+        this.nanos = nanos;
+      }
+    }
+
+    // the results of a batch, in the order of the programs, with latency statistics
+    public static final class Report {
+      public final List<Result> results;
+      public final long wallNanos; // from the first submission to the last result
+      private final long[] sorted;
+
+      Report(List<Result> results, long wallNanos) {
+        this.results = results;
+        this.wallNanos = wallNanos;
+        sorted = results.stream().mapToLong(r -> r.nanos).sorted().toArray();
+      }
+
+      // runs per second
+      public double throughput() {
+        return wallNanos == 0 ? 0 : results.size() * 1e9 / wallNanos;
+      }
+
+      // time of run below which are p percent of the runs (nearest rank), in nanoseconds
+      public long percentile(double p) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(rank, sorted.length) - 1)];
+      }
+
+      public long failures() {
+        return results.stream().filter(r -> r.error != null).count();
+      }
+
+      @Override
+      public String toString() {
+        return String.format("%d runs (%d failed) in %.1f ms, %.0f runs/s, latency us p50 %.1f p90 %.1f p99 %.1f max %.1f",
+            results.size(), failures(), wallNanos / 1e6, throughput(),
+            percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3, percentile(100) / 1e3);
+      }
+    }
+
+    private final ExecutorService executor;
+    private final boolean owned; // the executor is shut down by close
+    private final Queue<Memory> memories = new ConcurrentLinkedQueue<>();
+    private ExecuteVM.Engine engine = ExecuteVM.Engine.SWITCH;
+    private int stackSize = ExecuteVM.STACKSIZE;
+    private int heapSize = ExecuteVM.HEAPSIZE;
+
+    public BatchRunner() {
+      this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchRunner(int threads) {
+      this(Executors.newFixedThreadPool(threads), true);
+    }
+
+    // the executor stays open after close
+    public BatchRunner(ExecutorService executor) {
+      this(executor, false);
+    }
+
+    private BatchRunner(ExecutorService executor, boolean owned) {
+      this.executor = executor;
+      this.owned = owned;
+    }
+
+    public BatchRunner engine(ExecuteVM.Engine engine) {
+      this.engine = engine;
+      return this;
+    }
+
+    // sizes of the VMs; the pooled memory is dropped when they change
+    public BatchRunner sizes(int stackSize, int heapSize) {
+      this.stackSize = stackSize;
+      this.heapSize = heapSize;
+      memories.clear();
+      return this;
+    }
+
+    // runs every program once, checked
+    public Report run(List<int[]> programs, ExecuteVM.Heap heap) throws InterruptedException {
+      Map<int[],Program> prepared = new IdentityHashMap<>();
+      List<Program> runs = new ArrayList<>();
+      for (int[] code : programs) runs.add(prepared.computeIfAbsent(code, c -> new Program(c, heap, null)));
+      return submit(runs);
+    }
+
+    // runs the program the given number of times, checked
+    public Report run(int[] code, ExecuteVM.Heap heap, int times) throws InterruptedException {
+      return submit(Collections.nCopies(times, new Program(code, heap, null)));
+    }
+
+    // runs every program once, verified with its labelRefs
+    public Report run(List<Executable> programs) throws InterruptedException {
+      Map<Executable,Program> prepared = new IdentityHashMap<>();
+      List<Program> runs = new ArrayList<>();
+      for (Executable program : programs) runs.add(prepared.computeIfAbsent(program, p -> new Program(p.code, p.heap, p.labelRefs)));
+      return submit(runs);
+    }
+
+    // runs the program the given number of times, verified with its labelRefs
+    public Report run(Executable program, int times) throws InterruptedException {
+      return submit(Collections.nCopies(times, new Program(program.code, program.heap, program.labelRefs)));
+    }
+
+    private Report submit(List<Program> runs) throws InterruptedException {
+      int stackSize = this.stackSize, heapSize = this.heapSize;
+      List<Callable<Result>> tasks = new ArrayList<>(runs.size());
+      for (int i = 0; i < runs.size(); i++) {
+        int index = i;
+        Program program = runs.get(i);
+        tasks.add(() -> program.run(index, stackSize, heapSize));
+      }
+      long start = System.nanoTime();
+      List<Future<Result>> futures = executor.invokeAll(tasks);
+      long wall = System.nanoTime() - start;
+      List<Result> results = new ArrayList<>(futures.size());
+      for (Future<Result> f : futures) {
+        try {
+          results.add(f.get());
+        } catch (ExecutionException e) { // an Error other than a stack overflow
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      return new Report(results, wall);
+    }
+
+    @Override
+    public void close() {
+      if (owned) executor.shutdown();
+      memories.clear();
+    }
+
+    // code shared by all the runs of a program in a batch
+    private final class Program {
+      final int[] code;
+      final ExecuteVM.Heap heap;
+      final ExecuteVM.Engine engine = BatchRunner.this.engine;
+      final Verifier verified;
+      final ThreadedCode threaded;
+      final TieredCompiler jit;
+
+      // labelRefs null runs the code checked
+      Program(int[] code, ExecuteVM.Heap heap, Set<Integer> labelRefs) {
+        this.code = code;
+        this.heap = heap;
+        verified = ExecuteVM.verify(code, labelRefs);
+        threaded = engine == ExecuteVM.Engine.THREADED && verified != null ? new ThreadedCode(code) : null;
+        jit = engine == ExecuteVM.Engine.TIERED && verified != null ? new TieredCompiler(code) : null;
+      }
+
+      Result run(int index, int stackSize, int heapSize) {
+        CollectingOutput output = new CollectingOutput();
+        long start = System.nanoTime();
+        Memory memory = memories.poll();
+        if (memory == null) memory = new ArrayMemory(stackSize + Math.min(heapSize, ExecuteVM.INITIAL_HEAP));
+        ExecuteVM vm = null;
+        Throwable error = null;
+        try {
+          vm = new ExecuteVM(code, engine, heap, stackSize, heapSize, memory, verified, threaded, jit);
+          vm.outputTo(output);
+          vm.cpu();
+        } catch (RuntimeException | StackOverflowError e) {
+          error = e;
+        }
+        long nanos = System.nanoTime() - start;
+        memories.add(vm != null ? vm.memory : memory); // grown, if the heap grew
+        return new Result(index, output.values(), error, nanos);
+      }
+    }
+
+}
@@ -0,0 +1,123 @@
+package svm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Memory kept off the Java heap, so that a large heap of the VM is neither scanned
+ * nor copied by the collector of the JVM: in native memory (allocate) or in a file
+ * mapped into memory (map), which holds the image of the memory when the run ends.
+ * A buffer holds at most 2^31-1 bytes, so the words are split in chunks of 2^28 words
+ * and the memory can reach the whole int address space of the VM.
+ * Memories made by create are in native memory, also for a mapped file: they hold
+ * the tables of the heap managers, which are not part of the image.
+ */
+final class BufferMemory extends Memory {
+
+    private static final int SHIFT = 28;
+    private static final int CHUNK = 1 << SHIFT;
+    private static final int MASK = CHUNK - 1;
+
+    private final Path file; // null for native memory
+    private final IntBuffer[] chunks;
+    private final int size;
+
+    private BufferMemory(Path file, IntBuffer[] chunks, int size) {
+      this.file = file;
+      this.chunks = chunks;
+      this.size = size;
+    }
+
+    static BufferMemory allocate(int size) {
+      return new BufferMemory(null, new IntBuffer[0], 0).resize(size);
+    }
+
+    // the file is created if missing, and its first words become the first words of the memory
+    static BufferMemory map(Path file, int size) {
+      return new BufferMemory(file, new IntBuffer[0], 0).resize(size);
+    }
+
+    @Override
+    int get(int address) {
+      return chunks[address >>> SHIFT].get(address & MASK);
+    }
+
+    @Override
+    void set(int address, int value) {
+      chunks[address >>> SHIFT].put(address & MASK, value);
+    }
+
+    @Override
+    int size() {
+      return size;
+    }
+
+    @Override
+    void copy(int from, int to, int words) {
+      if (to < from)
+        for (int i = 0; i < words; i++) set(to+i, get(from+i));
+      else
+        for (int i = words-1; i >= 0; i--) set(to+i, get(from+i));
+    }
+
+    // the full chunks are kept, the last one is replaced: copied for native memory and
+    // mapped again for a file, whose words are already there
+    @Override
+    BufferMemory resize(int size) {
+      int full = size >>> SHIFT, count = (size + MASK) >>> SHIFT;
+      IntBuffer[] chunks = Arrays.copyOf(this.chunks, count);
+      for (int c = Math.min(this.size >>> SHIFT, full); c < count; c++) {
+        int words = c < full ? CHUNK : size & MASK;
+        if (file != null) {
+          chunks[c] = map(c, words);
+        } else {
+          chunks[c] = ByteBuffer.allocateDirect(words*4).order(ByteOrder.nativeOrder()).asIntBuffer();
+          if (c < this.chunks.length)
+            chunks[c].put(0, this.chunks[c], 0, Math.min(words, this.chunks[c].capacity()));
+        }
+      }
+      return new BufferMemory(file, chunks, size);
+    }
+
+    @Override
+    BufferMemory create(int size) {
+      return allocate(size);
+    }
+
+    @Override
+    void read(int address, int words, IntBuffer to) {
+      for (int done = 0, n; done < words; done += n) {
+        int a = address+done, offset = a & MASK;
+        n = Math.min(words-done, CHUNK-offset);
+        to.put(to.position(), chunks[a >>> SHIFT], offset, n).position(to.position()+n);
+      }
+    }
+
+    @Override
+    void write(int address, int words, IntBuffer from) {
+      for (int done = 0, n; done < words; done += n) {
+        int a = address+done, offset = a & MASK;
+        n = Math.min(words-done, CHUNK-offset);
+        chunks[a >>> SHIFT].put(offset, from, from.position(), n);
+        from.position(from.position()+n);
+      }
+    }
+
+    private IntBuffer map(int chunk, int words) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+              StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        return channel.map(FileChannel.MapMode.READ_WRITE, 4L*chunk*CHUNK, 4L*words)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+}
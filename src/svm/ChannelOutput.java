@@ -0,0 +1,39 @@
+package svm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The values as binary ints, 4 little-endian bytes each (as Checkpoint), written to
+ * a FileChannel through a direct buffer when it is full and at flush.
+ */
+public final class ChannelOutput extends Output {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    public ChannelOutput(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void print(int value) {
+      if (buffer.remaining() < Integer.BYTES) flush();
+      buffer.putInt(value);
+    }
+
+    @Override
+    public void flush() {
+      buffer.flip();
+      try {
+        while (buffer.hasRemaining()) channel.write(buffer);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      buffer.clear();
+    }
+
+}
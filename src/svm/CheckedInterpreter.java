@@ -0,0 +1,273 @@
+package svm;
+
+/**
+ * Fetch loop for code that did not pass the Verifier, whatever the engine: the
+ * instructions of the SWITCH loop of ExecuteVM, but every fetch must be at an
+ * instruction start, every pop must find a word above the bottom of the stack,
+ * every push must find a free word and every load and store must be in memory,
+ * so that bad code stops with an IllegalStateException instead of running on
+ * in corrupted memory.
+ */
+final class CheckedInterpreter {
+
+    private final ExecuteVM vm;
+    private final int[] code;
+    private final boolean[] start; // instruction starts, by a linear sweep over the valid opcodes
+
+    CheckedInterpreter(ExecuteVM vm) {
+      this.vm = vm;
+      code = vm.code;
+      start = new boolean[code.length];
+      for (int i = 0; i < code.length; ) {
+        if (!InstructionSet.isInstruction(code[i])) { i++; continue; }
+        start[i] = true;
+        i += InstructionSet.length(code[i]);
+      }
+    }
+
+    void run() {
+      run(Long.MAX_VALUE);
+    }
+
+    // runs at most budget instructions (see ExecuteVM.slice), false once the program halted
+    boolean run(long budget) {
+      int ip = vm.ip;
+      long n = 0;
+      int low = vm.deepest;
+      while ( true ) {
+        if (vm.sp < low) low = vm.sp;
+        if (n >= budget) {
+          vm.ip = ip;
+          vm.executed += n;
+          vm.deepest = low;
+          return true;
+        }
+        n++;
+        if (ip < 0 || ip >= code.length || !start[ip] || ip + InstructionSet.length(code[ip]) > code.length)
+          throw new IllegalStateException("No instruction at address "+ip);
+        int bytecode = code[ip++]; // fetch
+        int v1,v2;
+        int address;
+        switch ( bytecode ) {
+          case SVMParser.PUSH:
+            push( code[ip++] );
+            break;
+          case SVMParser.POP:
+            pop();
+            break;
+          case SVMParser.ADD :
+            v1=pop();
+            v2=pop();
+            push(v2 + v1);
+            break;
+          case SVMParser.MULT :
+            v1=pop();
+            v2=pop();
+            push(v2 * v1);
+            break;
+          case SVMParser.DIV :
+            v1=pop();
+            v2=pop();
+            push(v2 / v1);
+            break;
+          case SVMParser.SUB :
+            v1=pop();
+            v2=pop();
+            push(v2 - v1);
+            break;
+          case SVMParser.STOREW :
+            address = pop();
+            set(address, pop());
+            break;
+          case SVMParser.LOADW :
+            push(get(pop()));
+            break;
+          case SVMParser.BRANCH :
+            ip = code[ip];
+            break;
+          case SVMParser.BRANCHEQ :
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 == v1) ip = address;
+            break;
+          case SVMParser.BRANCHLESSEQ :
+            address = code[ip++];
+            v1=pop();
+            v2=pop();
+            if (v2 <= v1) ip = address;
+            break;
+          case SVMParser.JS :
+            address = pop();
+            vm.ra = ip;
+            ip = address;
+            break;
+          case SVMParser.STORERA :
+            vm.ra=pop();
+            break;
+          case SVMParser.LOADRA :
+            push(vm.ra);
+            break;
+          case SVMParser.STORETM :
+            vm.tm=pop();
+            break;
+          case SVMParser.LOADTM :
+            push(vm.tm);
+            break;
+          case SVMParser.LOADFP :
+            push(vm.fp);
+            break;
+          case SVMParser.STOREFP :
+            vm.fp=pop();
+            break;
+          case SVMParser.COPYFP :
+            vm.fp=vm.sp;
+            break;
+          case SVMParser.STOREHP :
+            vm.hp=pop();
+            break;
+          case SVMParser.LOADHP :
+            push(vm.hp);
+            break;
+          case SVMParser.PRINT :
+            words(1);
+            vm.output.print(vm.memory.get(vm.sp));
+            break;
+          case SVMParser.HALT :
+            vm.ip = ip;
+            vm.executed += n;
+            vm.deepest = low;
+            return false;
+          case SVMParser.CHECKPOINT :
+            vm.ip = ip;
+            vm.checkpoint();
+            break;
+          case SVMParser.LOADWOFF :
+            push(get(pop() + code[ip++]));
+            break;
+          case SVMParser.LOADFPW :
+            push(get(vm.fp + code[ip++]));
+            break;
+          case SVMParser.LOADGLOBAL :
+            push(get(vm.stackSize + code[ip++]));
+            break;
+          case SVMParser.STOREFPW :
+            address = vm.fp + code[ip++];
+            set(address, pop());
+            break;
+          case SVMParser.ADDI :
+            push(pop() + code[ip++]);
+            break;
+          case SVMParser.DUP :
+            vm.tm=pop();
+            push(vm.tm);
+            push(vm.tm);
+            break;
+          case SVMParser.STOREHPINC :
+            v1=pop();
+            set(vm.hp++, v1);
+            break;
+          case SVMParser.EQ :
+            v1=pop();
+            v2=pop();
+            push(v2 == v1 ? 1 : 0);
+            break;
+          case SVMParser.LE :
+            v1=pop();
+            v2=pop();
+            push(v2 <= v1 ? 1 : 0);
+            break;
+          case SVMParser.LT :
+            v1=pop();
+            v2=pop();
+            push(v2 < v1 ? 1 : 0);
+            break;
+          case SVMParser.AND :
+            v1=pop();
+            v2=pop();
+            push(v2 != 0 && v1 != 0 ? 1 : 0);
+            break;
+          case SVMParser.OR :
+            v1=pop();
+            v2=pop();
+            push(v2 != 0 || v1 != 0 ? 1 : 0);
+            break;
+          case SVMParser.NOT :
+            push(pop() == 0 ? 1 : 0);
+            break;
+          case SVMParser.NEW :
+            words(code[ip]+1);
+            vm.newObject(code[ip++]);
+            break;
+          case SVMParser.ALLOC :
+            words(code[ip]);
+            vm.allocate(code[ip++]);
+            break;
+          case SVMParser.INCREF :
+            words(1);
+            vm.incref(vm.memory.get(vm.sp));
+            break;
+          case SVMParser.DECREF : // the value stays on the stack
+            words(code[ip]+1);
+            vm.decref(vm.memory.get(vm.sp + code[ip++]));
+            break;
+          case SVMParser.CALL : // top of stack (Access Link) stays
+            words(1);
+            address = get(vm.memory.get(vm.sp) + code[ip++]);
+            vm.ra = ip;
+            ip = address;
+            break;
+          case SVMParser.CALLMETHOD : // without the inline cache
+            words(1);
+            address = get(get(vm.memory.get(vm.sp)) + code[ip++]);
+            vm.ra = ip;
+            ip = address;
+            break;
+          case SVMParser.ENTER :
+            if (vm.sp < vm.stackGuard) vm.stackOverflow();
+            vm.fp=vm.sp;
+            push(vm.ra);
+            break;
+          case SVMParser.RET : // result, locals, $ra, Access Link, parameters, Control Link
+            vm.tm=pop();
+            words(code[ip]);
+            vm.sp+=code[ip++];
+            vm.ra=pop();
+            words(1+code[ip]);
+            vm.sp+=1+code[ip++];
+            vm.fp=pop();
+            push(vm.tm);
+            ip=vm.ra;
+            break;
+          default:
+            throw new IllegalStateException("Invalid opcode "+bytecode+" at address "+(ip-1));
+        }
+      }
+    }
+
+    // the top n words must be on the stack
+    private void words(int n) {
+      if (n < 0 || vm.stackSize - vm.sp < n) throw new IllegalStateException("Stack underflow");
+    }
+
+    private int get(int address) {
+      if (address < 0 || address >= vm.memory.size()) throw new IllegalStateException("Invalid address "+address);
+      return vm.memory.get(address);
+    }
+
+    private void set(int address, int value) {
+      if (address < 0 || address >= vm.memory.size()) throw new IllegalStateException("Invalid address "+address);
+      vm.memory.set(address, value);
+    }
+
+    private int pop() {
+      words(1);
+      return vm.memory.get(vm.sp++);
+    }
+
+    private void push(int v) {
+      if (vm.sp <= 0) vm.stackOverflow();
+      vm.memory.set(--vm.sp, v);
+    }
+
+}
@@ -0,0 +1,87 @@
+package svm;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Snapshots of a running ExecuteVM, written by the checkpoint instruction and read
+ * back by ExecuteVM.restore, so that the state built by the first part of a program
+ * (objects, dispatch tables) can be reused by many runs of the rest.
+ * A snapshot is a file of little-endian words, mapped into memory both to write
+ * and to read it:
+ *   magic, version, heap (0 COLLECTED, 1 COUNTED), stack size, heap limit,
+ *   ip, sp, fp, hp, ra, tm,
+ *   length of the code, words of code saved (up to the last non-zero one) and those words,
+ *   number of labelRefs of the code (-1 if it runs checked) and the labelRefs,
+ *   the used stack (from sp up to the stack size) and the used heap (up to hp),
+ *   words of state of the heap manager and the state (see save in GarbageCollector
+ *   and ReferenceCounter).
+ * The free memory between the stack and the heap is not saved. The restored code is
+ * verified again with its labelRefs, or runs checked as it did when it was saved.
+ */
+final class Checkpoint {
+
+    private static final int MAGIC = 0x53564d43; // "SVMC"
+    private static final int VERSION = 3;
+    private static final int HEADER = 11;
+
+    private Checkpoint() {}
+
+    static void write(ExecuteVM vm, Path file) throws IOException {
+      int[] heapState = vm.rc != null ? vm.rc.save(vm.stackSize, vm.hp) : vm.gc.save(vm.stackSize, vm.hp);
+      int stack = vm.stackSize-vm.sp, heap = vm.hp-vm.stackSize;
+      int used = vm.code.length;
+      while (used > 0 && vm.code[used-1] == 0) used--; // as Executable, not the padding of the code array
+      Set<Integer> labelRefs = vm.checked ? Set.of() : vm.verified.labelRefs();
+      long words = HEADER + 2L + used + 1 + labelRefs.size() + stack + heap + 1 + heapState.length;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        IntBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, 4*words).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        out.put(MAGIC).put(VERSION).put(vm.rc != null ? 1 : 0).put(vm.stackSize).put(vm.heapSize);
+        out.put(vm.ip).put(vm.sp).put(vm.fp).put(vm.hp).put(vm.ra).put(vm.tm);
+        out.put(vm.code.length).put(used).put(vm.code, 0, used);
+        out.put(vm.checked ? -1 : labelRefs.size());
+        for (int j : labelRefs) out.put(j);
+        vm.memory.read(vm.sp, stack, out);
+        vm.memory.read(vm.stackSize, heap, out);
+        out.put(heapState.length).put(heapState);
+      }
+    }
+
+    static ExecuteVM read(Path file, ExecuteVM.Engine engine) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        IntBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        if (in.remaining() < HEADER || in.get() != MAGIC) throw new IOException(file+" is not an SVM checkpoint");
+        int version = in.get();
+        if (version != VERSION) throw new IOException("Unsupported checkpoint version "+version);
+        ExecuteVM.Heap heap = in.get() == 1 ? ExecuteVM.Heap.COUNTED : ExecuteVM.Heap.COLLECTED;
+        int stackSize = in.get(), heapSize = in.get();
+        int ip = in.get(), sp = in.get(), fp = in.get(), hp = in.get(), ra = in.get(), tm = in.get();
+        int[] code = new int[in.get()];
+        in.get(code, 0, in.get());
+        Set<Integer> labelRefs = null;
+        int refs = in.get();
+        if (refs >= 0) {
+          labelRefs = new TreeSet<>();
+          for (; refs > 0; refs--) labelRefs.add(in.get());
+        }
+
+        ExecuteVM vm = new ExecuteVM(code, engine, heap, stackSize, heapSize, new ArrayMemory(stackSize + Math.min(heapSize, ExecuteVM.INITIAL_HEAP)),
+            ExecuteVM.verify(code, labelRefs), null, null);
+        if (hp > vm.memory.size()) vm.grow(hp);
+        vm.memory.write(sp, stackSize-sp, in);
+        vm.memory.write(stackSize, hp-stackSize, in);
+        int words = in.get();
+        if (vm.rc != null) vm.rc.restore(in, words); else vm.gc.restore(stackSize, in, words);
+        vm.ip = ip; vm.sp = vm.deepest = sp; vm.fp = fp; vm.hp = hp; vm.ra = ra; vm.tm = tm;
+        return vm;
+      }
+    }
+
+}
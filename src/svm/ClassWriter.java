@@ -0,0 +1,299 @@
+package svm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Minimal writer of JVM class files, used to translate SVM and FOOL code to bytecode.
+ * Classes are written with major version 49, so the JVM verifies them by type
+ * inference and no StackMapTable has to be computed. Each Code tracks the operand
+ * stack depth of the instructions it emits to compute max_stack; the depth at a
+ * label that follows an unconditional jump is the one recorded by the jumps to it.
+ */
+public class ClassWriter {
+
+    public static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008,
+        ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    public static final int ACONST_NULL = 1, ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC = 18, LDC_W = 19,
+        ILOAD = 21, ALOAD = 25, IALOAD = 46, AALOAD = 50, ISTORE = 54, ASTORE = 58, IASTORE = 79, AASTORE = 83,
+        POP = 87, DUP = 89, DUP_X1 = 90, SWAP = 95, IADD = 96, ISUB = 100, IMUL = 104, IDIV = 108, INEG = 116,
+        IAND = 126, IOR = 128, IXOR = 130, IINC = 132, IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158,
+        IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162, IF_ICMPGT = 163, IF_ICMPLE = 164,
+        IF_ACMPEQ = 165, IF_ACMPNE = 166, GOTO = 167, IRETURN = 172, ARETURN = 176, RETURN = 177,
+        GETSTATIC = 178, PUTSTATIC = 179, GETFIELD = 180, PUTFIELD = 181, INVOKEVIRTUAL = 182,
+        INVOKESPECIAL = 183, INVOKESTATIC = 184, INVOKEINTERFACE = 185, NEW = 187, NEWARRAY = 188,
+        ANEWARRAY = 189, ARRAYLENGTH = 190, ATHROW = 191, CHECKCAST = 192, INSTANCEOF = 193,
+        IFNULL = 198, IFNONNULL = 199;
+
+    public static final int T_INT = 10; // NEWARRAY type
+
+    private static final int[] STACK_EFFECT = new int[200];
+    static {
+      STACK_EFFECT[ACONST_NULL] = 1;
+      for (int op = 2; op <= 8; op++) STACK_EFFECT[op] = 1; // iconst_m1 .. iconst_5
+      STACK_EFFECT[IALOAD] = -1; STACK_EFFECT[AALOAD] = -1; STACK_EFFECT[IASTORE] = -3; STACK_EFFECT[AASTORE] = -3;
+      STACK_EFFECT[POP] = -1; STACK_EFFECT[DUP] = 1; STACK_EFFECT[DUP_X1] = 1; STACK_EFFECT[SWAP] = 0;
+      STACK_EFFECT[IADD] = -1; STACK_EFFECT[ISUB] = -1; STACK_EFFECT[IMUL] = -1; STACK_EFFECT[IDIV] = -1;
+      STACK_EFFECT[IAND] = -1; STACK_EFFECT[IOR] = -1; STACK_EFFECT[IXOR] = -1;
+      STACK_EFFECT[INEG] = 0; STACK_EFFECT[IRETURN] = -1; STACK_EFFECT[ARETURN] = -1; STACK_EFFECT[RETURN] = 0;
+      STACK_EFFECT[ARRAYLENGTH] = 0; STACK_EFFECT[ATHROW] = -1;
+    }
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String,Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int access, thisClass, superClass;
+    private final int[] interfaces;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    // names in internal form, e.g. "svm/ExecuteVM"
+    public ClassWriter(String name, String superName, String... interfaceNames) {
+      this(ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, superName, interfaceNames);
+    }
+
+    public ClassWriter(int access, String name, String superName, String... interfaceNames) {
+      this.access = access;
+      utf8("Code");
+      thisClass = classRef(name);
+      superClass = classRef(superName);
+      interfaces = new int[interfaceNames.length];
+      for (int i = 0; i < interfaceNames.length; i++) interfaces[i] = classRef(interfaceNames[i]);
+    }
+
+    public void field(int access, String name, String desc) {
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(b);
+      try {
+        out.writeShort(access); out.writeShort(utf8(name)); out.writeShort(utf8(desc)); out.writeShort(0);
+      } catch (IOException e) { throw new UncheckedIOException(e); }
+      fields.add(b.toByteArray());
+    }
+
+    public Code method(int access, String name, String desc) {
+      Code code = new Code(access, name, desc);
+      methods.add(code);
+      return code;
+    }
+
+    public byte[] toByteArray() {
+      ByteArrayOutputStream b = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(b);
+      try {
+        out.writeInt(0xCAFEBABE); out.writeShort(0); out.writeShort(49);
+        out.writeShort(poolCount); pool.writeTo(out);
+        out.writeShort(access);
+        out.writeShort(thisClass); out.writeShort(superClass);
+        out.writeShort(interfaces.length);
+        for (int i : interfaces) out.writeShort(i);
+        out.writeShort(fields.size());
+        for (byte[] f : fields) out.write(f);
+        out.writeShort(methods.size());
+        for (Code m : methods) m.writeTo(out);
+        out.writeShort(0);
+      } catch (IOException e) { throw new UncheckedIOException(e); }
+      return b.toByteArray();
+    }
+
+    // constant pool
+
+    private int constant(String key, int slots, DataWriter writer) {
+      Integer index = poolIndex.get(key);
+      if (index != null) return index;
+      try { writer.write(poolOut); } catch (IOException e) { throw new UncheckedIOException(e); }
+      poolIndex.put(key, poolCount);
+      poolCount += slots;
+      return poolCount - slots;
+    }
+
+    private interface DataWriter { void write(DataOutputStream out) throws IOException; }
+
+    private int utf8(String s) {
+      return constant("U"+s, 1, out -> { out.writeByte(1); out.writeUTF(s); });
+    }
+
+    private int classRef(String name) {
+      int n = utf8(name);
+      return constant("C"+name, 1, out -> { out.writeByte(7); out.writeShort(n); });
+    }
+
+    private int intConstant(int v) {
+      return constant("I"+v, 1, out -> { out.writeByte(3); out.writeInt(v); });
+    }
+
+    private int stringConstant(String s) {
+      int u = utf8(s);
+      return constant("S"+s, 1, out -> { out.writeByte(8); out.writeShort(u); });
+    }
+
+    private int memberRef(int tag, String owner, String name, String desc) {
+      int c = classRef(owner);
+      int n = utf8(name), d = utf8(desc);
+      int nt = constant("N"+name+":"+desc, 1, out -> { out.writeByte(12); out.writeShort(n); out.writeShort(d); });
+      return constant(tag+owner+"."+name+":"+desc, 1, out -> { out.writeByte(tag); out.writeShort(c); out.writeShort(nt); });
+    }
+
+    // number of stack slots taken by the arguments of a method descriptor
+    private static int argSlots(String desc) {
+      int slots = 0;
+      for (int i = 1; desc.charAt(i) != ')'; i++) {
+        char c = desc.charAt(i);
+        if (c == 'J' || c == 'D') slots++;
+        else if (c == '[') { while (desc.charAt(i) == '[') i++; if (desc.charAt(i) == 'L') i = desc.indexOf(';', i); }
+        else if (c == 'L') i = desc.indexOf(';', i);
+        slots++;
+      }
+      return slots;
+    }
+
+    private static int slots(String desc) {
+      return desc.equals("V") ? 0 : desc.equals("J") || desc.equals("D") ? 2 : 1;
+    }
+
+    public static class Label {
+      private int position = -1;
+      private int depth = -1; // operand stack depth at the label
+      private final List<int[]> uses = new ArrayList<>(); // {position of the jump, position of the offset}
+    }
+
+    /**
+     * Code of a method. Locals are indexed by the caller, max_locals is the
+     * highest index used plus one (plus the arguments).
+     */
+    public class Code {
+      private final int access, name, desc;
+      private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      private final List<Label> labels = new ArrayList<>();
+      private int depth = 0, maxStack = 0, maxLocals;
+      private boolean reachable = true;
+
+      private Code(int access, String name, String desc) {
+        this.access = access;
+        this.name = utf8(name);
+        this.desc = utf8(desc);
+        maxLocals = argSlots(desc) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+      }
+
+      public int depth() {
+        return depth;
+      }
+
+      private void stack(int delta) {
+        depth += delta;
+        maxStack = Math.max(maxStack, depth);
+      }
+
+      private void u1(int v) { bytes.write(v); }
+      private void u2(int v) { bytes.write(v >> 8); bytes.write(v); }
+
+      // instruction without operands
+      public void op(int opcode) {
+        u1(opcode);
+        stack(STACK_EFFECT[opcode]);
+        if (opcode >= IRETURN && opcode <= RETURN || opcode == ATHROW) reachable = false;
+      }
+
+      public void intConst(int v) {
+        if (v >= -1 && v <= 5) u1(ICONST_0 + v);
+        else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) { u1(BIPUSH); u1(v); }
+        else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) { u1(SIPUSH); u2(v); }
+        else { u1(LDC_W); u2(intConstant(v)); }
+        stack(1);
+      }
+
+      public void stringConst(String s) {
+        u1(LDC_W); u2(stringConstant(s));
+        stack(1);
+      }
+
+      // iload, aload, istore, astore
+      public void local(int opcode, int index) {
+        if (index > 255) throw new IllegalStateException("Too many locals");
+        u1(opcode); u1(index);
+        stack(opcode == ILOAD || opcode == ALOAD ? 1 : -1);
+        maxLocals = Math.max(maxLocals, index+1);
+      }
+
+      public void iinc(int index, int delta) {
+        if (delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE) {
+          local(ILOAD, index); intConst(delta); op(IADD); local(ISTORE, index);
+          return;
+        }
+        u1(IINC); u1(index); u1(delta);
+        maxLocals = Math.max(maxLocals, index+1);
+      }
+
+      public void field(int opcode, String owner, String name, String desc) {
+        u1(opcode); u2(memberRef(9, owner, name, desc));
+        int s = slots(desc);
+        stack(opcode == GETSTATIC ? s : opcode == PUTSTATIC ? -s : opcode == GETFIELD ? s-1 : -s-1);
+      }
+
+      public void invoke(int opcode, String owner, String name, String desc) {
+        int args = argSlots(desc);
+        if (opcode == INVOKEINTERFACE) {
+          u1(opcode); u2(memberRef(11, owner, name, desc)); u1(args+1); u1(0);
+        } else {
+          u1(opcode); u2(memberRef(10, owner, name, desc));
+        }
+        stack(-args - (opcode == INVOKESTATIC ? 0 : 1) + slots(desc.substring(desc.indexOf(')')+1)));
+      }
+
+      // new, anewarray, checkcast, instanceof
+      public void type(int opcode, String className) {
+        u1(opcode); u2(classRef(className));
+        stack(opcode == NEW ? 1 : 0);
+      }
+
+      public void newIntArray() {
+        u1(NEWARRAY); u1(T_INT);
+      }
+
+      public Label label() {
+        Label l = new Label();
+        labels.add(l);
+        return l;
+      }
+
+      public void mark(Label l) {
+        l.position = bytes.size();
+        if (!reachable) depth = Math.max(l.depth, 0);
+        else if (l.depth < 0) l.depth = depth;
+        reachable = true;
+      }
+
+      // goto and conditional jumps
+      public void jump(int opcode, Label l) {
+        int at = bytes.size();
+        u1(opcode); u2(0);
+        l.uses.add(new int[] {at, at+1});
+        stack(opcode == GOTO ? 0 : opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE ? -2 : -1);
+        if (l.depth < 0) l.depth = depth;
+        if (opcode == GOTO) reachable = false;
+      }
+
+      private void writeTo(DataOutputStream out) throws IOException {
+        byte[] code = bytes.toByteArray();
+        for (Label l : labels)
+          for (int[] use : l.uses) {
+            int offset = l.position - use[0];
+            if (l.position < 0 || offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+              throw new IllegalStateException("Jump out of range");
+            code[use[1]] = (byte) (offset >> 8);
+            code[use[1]+1] = (byte) offset;
+          }
+        if (code.length >= 65536) throw new IllegalStateException("Method too large");
+        out.writeShort(access); out.writeShort(name); out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack); out.writeShort(maxLocals);
+        out.writeInt(code.length); out.write(code);
+        out.writeShort(0); out.writeShort(0);
+      }
+    }
+
+}
@@ -0,0 +1,102 @@
+package svm;
+
+import java.util.*;
+
+/**
+ * Emitter building the int[] code of a program, as assembled by SVMParser from the
+ * same instructions: label operands are recorded and patched by code().
+ */
+public class CodeEmitter implements Emitter {
+
+    private int[] code = new int[1024];
+    private int size = 0;
+    private final Map<String,Integer> labels = new HashMap<>();
+    private int[] refAt = new int[64];   // code addresses holding a label
+    private String[] refLabel = new String[64];
+    private int refs = 0;
+
+    @Override
+    public void op(int opcode) {
+      ensure(1);
+      code[size++] = opcode;
+    }
+
+    @Override
+    public void op(int opcode, int operand) {
+      ensure(2);
+      code[size++] = opcode;
+      code[size++] = operand;
+    }
+
+    @Override
+    public void op(int opcode, int first, int second) {
+      ensure(3);
+      code[size++] = opcode;
+      code[size++] = first;
+      code[size++] = second;
+    }
+
+    @Override
+    public void op(int opcode, String label) {
+      ensure(2);
+      code[size++] = opcode;
+      reference(size++, label);
+    }
+
+    @Override
+    public void label(String label) {
+      labels.put(label, size);
+    }
+
+    @Override
+    public Emitter block() {
+      return new CodeEmitter();
+    }
+
+    @Override
+    public void append(Emitter block) {
+      CodeEmitter b = (CodeEmitter) block;
+      ensure(b.size);
+      System.arraycopy(b.code, 0, code, size, b.size);
+      for (Map.Entry<String,Integer> label : b.labels.entrySet()) labels.put(label.getKey(), size + label.getValue());
+      for (int r = 0; r < b.refs; r++) reference(size + b.refAt[r], b.refLabel[r]);
+      size += b.size;
+    }
+
+    // the code, with the addresses of the labels in place
+    public int[] code() {
+      int[] result = Arrays.copyOf(code, size);
+      for (int r = 0; r < refs; r++) {
+        Integer address = labels.get(refLabel[r]);
+        if (address == null) throw new IllegalStateException("Undefined label "+refLabel[r]);
+        result[refAt[r]] = address;
+      }
+      return result;
+    }
+
+    // code addresses holding a label (see Fusion)
+    public Set<Integer> labelRefs() {
+      Set<Integer> set = new HashSet<>();
+      for (int r = 0; r < refs; r++) set.add(refAt[r]);
+      return set;
+    }
+
+    // address of every label
+    public Map<String,Integer> labels() {
+      return labels;
+    }
+
+    private void reference(int address, String label) {
+      if (refs == refAt.length) {
+        refAt = Arrays.copyOf(refAt, 2*refs);
+        refLabel = Arrays.copyOf(refLabel, 2*refs);
+      }
+      refAt[refs] = address;
+      refLabel[refs++] = label;
+    }
+
+    private void ensure(int words) {
+      if (size+words > code.length) code = Arrays.copyOf(code, Math.max(2*code.length, size+words));
+    }
+
+}
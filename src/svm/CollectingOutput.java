@@ -0,0 +1,29 @@
+package svm;
+
+import java.util.Arrays;
+
+/**
+ * The values kept in memory, in the order they are printed, e.g. to check the
+ * result of a program or to use it when the VM is embedded.
+ */
+public final class CollectingOutput extends Output {
+
+    private int[] values = new int[64];
+    private int size = 0;
+
+    @Override
+    public void print(int value) {
+      if (size == values.length) values = Arrays.copyOf(values, 2*size);
+      values[size++] = value;
+    }
+
+    // the values printed so far
+    public int[] values() {
+      return Arrays.copyOf(values, size);
+    }
+
+    public int size() {
+      return size;
+    }
+
+}
@@ -0,0 +1,46 @@
+package svm;
+
+/**
+ * Target of the code generator: SVM instructions are emitted one by one, in order,
+ * with labels by name. CodeEmitter builds the int[] code directly (labels are
+ * patched at the end), TextEmitter renders the assembly text for SVMParser or
+ * Assembler, e.g. for debugging. Opcodes are the SVMParser token types.
+ * Code that goes elsewhere (function bodies after the main program) is emitted
+ * into a block and appended later.
+ */
+public interface Emitter {
+
+    // instruction without operands, e.g. add
+    void op(int opcode);
+
+    // instruction with an integer operand, e.g. lwfp -2
+    void op(int opcode, int operand);
+
+    // instruction with two integer operands (ret)
+    void op(int opcode, int first, int second);
+
+    // instruction whose operand is the address of a label: push, b, beq, bleq
+    void op(int opcode, String label);
+
+    // defines the label at the address of the next instruction
+    void label(String label);
+
+    // new empty emitter of the same kind, for code appended later
+    Emitter block();
+
+    // appends the code of a block, which is not used afterwards
+    void append(Emitter block);
+
+    default void push(int value) {
+      op(SVMParser.PUSH, value);
+    }
+
+    default void pushLabel(String label) {
+      op(SVMParser.PUSH, label);
+    }
+
+    default void branch(int opcode, String label) {
+      op(opcode, label);
+    }
+
+}
@@ -0,0 +1,177 @@
+package svm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Assembled SVM program in binary form, so that a precompiled program can be run
+ * without going through SVMLexer and SVMParser again: read maps the file into
+ * memory and decodes it (see ExecuteVM.load). The labelRefs of the code are saved
+ * with it, so that it is verified as the assembled code is; a program saved
+ * without them runs checked.
+ * Format (integers in header fields are big-endian, the rest are varints: 7 bits
+ * per byte, low first, high bit set on all bytes but the last):
+ *   magic "SVMX", version (2 bytes), flags (2 bytes: COUNTED heap, labels, lines, labelRefs),
+ *   length of the code in words (4 bytes), bytes of encoded code (4 bytes),
+ *   the instructions, each one as its opcode followed by its operands (zigzag
+ *   encoded, so small negative offsets take one byte too), up to the last non-zero word,
+ *   if the labels flag is set, the number of labels and, for each one, its name
+ *   (length and UTF-8 bytes) and address,
+ *   if the lines flag is set, the number of instructions with a line and, for each
+ *   one, the difference of address and of line from the previous one,
+ *   if the labelRefs flag is set, their number and, for each one in increasing order,
+ *   the difference from the previous one.
+ */
+public final class Executable {
+
+    private static final int MAGIC = 0x53564d58; // "SVMX"
+    private static final int VERSION = 1;
+    private static final int COUNTED = 1, LABELS = 2, LINES = 4, LABELREFS = 8;
+
+    public final int[] code;
+    public final ExecuteVM.Heap heap; // heap the code was generated for
+    public final Set<Integer> labelRefs; // code addresses holding a label, null if not saved
+    public final Map<String,Integer> labels; // empty if not saved
+    public final Map<Integer,Integer> lines; // instruction address -> line of the assembly, empty if not saved
+
+    public Executable(int[] code, ExecuteVM.Heap heap) {
+      this(code, heap, null, Map.of(), Map.of());
+    }
+
+    public Executable(int[] code, ExecuteVM.Heap heap, Set<Integer> labelRefs) {
+      this(code, heap, labelRefs, Map.of(), Map.of());
+    }
+
+    public Executable(int[] code, ExecuteVM.Heap heap, Map<String,Integer> labels, Map<Integer,Integer> lines) {
+      this(code, heap, null, labels, lines);
+    }
+
+    public Executable(int[] code, ExecuteVM.Heap heap, Set<Integer> labelRefs, Map<String,Integer> labels, Map<Integer,Integer> lines) {
+      this.code = code;
+      this.heap = heap;
+      this.labelRefs = labelRefs;
+      this.labels = labels;
+      this.lines = lines;
+    }
+
+    public void write(Path file) throws IOException {
+      ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+      int used = code.length;
+      while (used > 0 && code[used-1] == 0) used--;
+      for (int i = 0; i < used; ) {
+        int length = Math.min(InstructionSet.length(code[i]), code.length-i);
+        varint(instructions, code[i]);
+        for (int w = 1; w < length; w++) varint(instructions, zigzag(code[i+w]));
+        i += length;
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int flags = (heap == ExecuteVM.Heap.COUNTED ? COUNTED : 0) | (labels.isEmpty() ? 0 : LABELS) | (lines.isEmpty() ? 0 : LINES)
+          | (labelRefs == null ? 0 : LABELREFS);
+      ByteBuffer header = ByteBuffer.allocate(16).putInt(MAGIC).putShort((short) VERSION).putShort((short) flags)
+          .putInt(code.length).putInt(instructions.size());
+      out.write(header.array());
+      instructions.writeTo(out);
+      if (!labels.isEmpty()) {
+        varint(out, labels.size());
+        for (Map.Entry<String,Integer> label : new TreeMap<>(labels).entrySet()) {
+          byte[] name = label.getKey().getBytes(StandardCharsets.UTF_8);
+          varint(out, name.length);
+          out.write(name);
+          varint(out, label.getValue());
+        }
+      }
+      if (!lines.isEmpty()) {
+        varint(out, lines.size());
+        int address = 0, line = 0;
+        for (Map.Entry<Integer,Integer> l : new TreeMap<>(lines).entrySet()) {
+          varint(out, zigzag(l.getKey()-address));
+          varint(out, zigzag(l.getValue()-line));
+          address = l.getKey();
+          line = l.getValue();
+        }
+      }
+      if (labelRefs != null) {
+        varint(out, labelRefs.size());
+        int address = 0;
+        for (int j : new TreeSet<>(labelRefs)) {
+          varint(out, j-address);
+          address = j;
+        }
+      }
+      Files.write(file, out.toByteArray());
+    }
+
+    public static Executable read(Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (in.remaining() < 16 || in.getInt() != MAGIC) throw new IOException(file+" is not an SVM executable");
+        int version = in.getShort();
+        if (version != VERSION) throw new IOException("Unsupported executable version "+version);
+        int flags = in.getShort();
+        int[] code = new int[in.getInt()];
+        int end = in.getInt() + in.position();
+        for (int i = 0; in.position() < end; ) {
+          int opcode = varint(in);
+          if (opcode < 0 || opcode > SVMParser.VOCABULARY.getMaxTokenType() || i >= code.length)
+            throw new IOException("Invalid opcode "+opcode+" at address "+i);
+          code[i++] = opcode;
+          for (int w = 1; w < InstructionSet.length(opcode) && i < code.length; w++) code[i++] = unzigzag(varint(in));
+        }
+
+        Map<String,Integer> labels = new HashMap<>();
+        if ((flags & LABELS) != 0)
+          for (int n = varint(in); n > 0; n--) {
+            byte[] name = new byte[varint(in)];
+            in.get(name);
+            labels.put(new String(name, StandardCharsets.UTF_8), varint(in));
+          }
+        Map<Integer,Integer> lines = new TreeMap<>();
+        if ((flags & LINES) != 0)
+          for (int n = varint(in), address = 0, line = 0; n > 0; n--) {
+            address += unzigzag(varint(in));
+            line += unzigzag(varint(in));
+            lines.put(address, line);
+          }
+        Set<Integer> labelRefs = null;
+        if ((flags & LABELREFS) != 0) {
+          labelRefs = new TreeSet<>();
+          for (int n = varint(in), address = 0; n > 0; n--) labelRefs.add(address += varint(in));
+        }
+        return new Executable(code, (flags & COUNTED) != 0 ? ExecuteVM.Heap.COUNTED : ExecuteVM.Heap.COLLECTED, labelRefs, labels, lines);
+      }
+    }
+
+    private static void varint(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7f) != 0) {
+        out.write(value & 0x7f | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    private static int varint(ByteBuffer in) {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = in.get();
+        value |= (b & 0x7f) << shift;
+        if (b >= 0) return value;
+      }
+    }
+
+    private static int zigzag(int value) {
+      return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+}
@@ -1,25 +1,209 @@
 package svm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+
 public class ExecuteVM {
     
-    public static final int CODESIZE = 10000;
-    public static final int MEMSIZE = 10000;
+    public static final int CODESIZE = 10000;   // initial capacity of the assembled code, SVMParser grows it as needed
+    public static final int STACKSIZE = 10000;  // default words of stack
+    public static final int HEAPSIZE = 1 << 24; // default limit of the heap, allocated as it grows
+    public static final int STACKGUARD = 256;   // words of stack a call must leave for the operands of the new frame
+    static final int INITIAL_HEAP = 1 << 12;     // words of heap allocated up front
+
+    // Memory is a single sequence of words: the stack grows down from stackSize to 0 and the heap
+    // grows up from stackSize (just above the frame of the main program, see lwg), growing the
+    // memory up to stackSize+heapSize words. A call that leaves less than stackGuard words of stack
+    // and an allocation beyond the heap limit stop the program instead of overwriting memory.
+    // Code that passes the Verifier with its labelRefs runs unchecked on the engine, with stackGuard
+    // the most words a function puts on the stack; any other code, and code given without a Verifier,
+    // runs on CheckedInterpreter, which checks every instruction, with the default guard.
+
+    // SWITCH decodes every instruction in the fetch loop of cpu(),
+    // THREADED runs the pre-decoded handlers built by ThreadedCode,
+    // TOS runs the fetch loop of TosInterpreter (top of stack kept in locals),
+    // TIERED runs the fetch loop of cpu() and compiles hot functions with TieredCompiler
+    public enum Engine { SWITCH, THREADED, TOS, TIERED }
+
+    // COLLECTED reclaims the heap with GarbageCollector when it is full,
+    // COUNTED frees every object as soon as its ReferenceCounter count drops to zero
+    // (for code generated with reference counts by CodeGenerationASTVisitor)
+    public enum Heap { COLLECTED, COUNTED }
+
+    // ARRAY keeps the memory in an int[] on the Java heap, NATIVE in native memory and
+    // MAPPED in a file mapped into memory (see BufferMemory)
+    public enum Storage { ARRAY, NATIVE, MAPPED }
     
-    private int[] code;
-    private int[] memory = new int[MEMSIZE];
+    final int[] code;
+    private final Engine engine;
+    private ThreadedCode threaded;
+    private TieredCompiler jit;
+    final int stackSize;
+    final int stackGuard;
+    final boolean checked; // the code did not pass the Verifier
+    final Verifier verified; // null if checked
+    final int heapSize;
+    Memory memory;
     
-    private int ip = 0;
-    private int sp = MEMSIZE;
+    int ip = 0;
+    int sp;
     
-    private int hp = 0;       
-    private int fp = MEMSIZE; 
-    private int ra;           
-    private int tm;
+    int hp;       
+    int fp; 
+    int ra;           
+    int tm;
+
+    final int[] methods; // inline caches of callm: dispatch pointer at the address of the instruction, target at the next word
+    GarbageCollector gc;
+    ReferenceCounter rc;
+    private Path checkpoint; // written by the checkpoint instruction, if set
+    Output output = Output.console(); // where print sends the values
+    long executed = 0;  // instructions run by slice()
+    int deepest;        // lowest $sp reached in slice()
+    private CheckedInterpreter checker; // of the slices of code that did not pass the Verifier
     
+    // the code runs checked: without its labelRefs the Verifier cannot check the pushed labels
     public ExecuteVM(int[] code) {
+      this(code, Engine.SWITCH);
+    }
+
+    public ExecuteVM(int[] code, Engine engine) {
+      this(code, engine, Heap.COLLECTED);
+    }
+
+    public ExecuteVM(int[] code, Engine engine, Heap heap) {
+      this(code, engine, heap, STACKSIZE, HEAPSIZE);
+    }
+
+    // code the caller has verified with the labelRefs of the assembler (see Verifier.verify); null
+    // runs it checked
+    public ExecuteVM(int[] code, Engine engine, Heap heap, Verifier verified) {
+      this(code, engine, heap, STACKSIZE, HEAPSIZE, new ArrayMemory(STACKSIZE + Math.min(HEAPSIZE, INITIAL_HEAP)), verified, null, null);
+    }
+
+    public ExecuteVM(int[] code, Engine engine, Heap heap, int stackSize, int heapSize) {
+      this(code, engine, heap, stackSize, heapSize, Storage.ARRAY, null);
+    }
+
+    // file is the image of the memory for MAPPED, ignored otherwise
+    public ExecuteVM(int[] code, Engine engine, Heap heap, int stackSize, int heapSize, Storage storage, Path file) {
+      this(code, engine, heap, stackSize, heapSize, storage, file, null);
+    }
+
+    public ExecuteVM(int[] code, Engine engine, Heap heap, int stackSize, int heapSize, Storage storage, Path file, Verifier verified) {
+      this(code, engine, heap, stackSize, heapSize, memory(storage, file, stackSize + Math.min(heapSize, INITIAL_HEAP)), verified, null, null);
+    }
+
+    // memory (at least stackSize words) is used as it is, whatever it holds: the program writes every
+    // word before reading it; verified is the Verifier of the code, null if the code did not pass;
+    // threaded is the code already decoded for THREADED and jit the compiler of the code for TIERED,
+    // shared with other VMs, null to build them here
+    ExecuteVM(int[] code, Engine engine, Heap heap, int stackSize, int heapSize, Memory memory, Verifier verified, ThreadedCode threaded, TieredCompiler jit) {
       this.code = code;
+      this.engine = engine;
+      this.stackSize = stackSize;
+      this.heapSize = heapSize;
+      this.memory = memory;
+      if (verified != null && !verified.verifies(code)) throw new IllegalArgumentException("Verifier of another code");
+      checked = verified == null;
+      this.verified = verified;
+      stackGuard = checked ? Math.min(STACKGUARD, stackSize/2) : verified.maxFrame();
+      if (!checked && verified.maxStack(0) > stackSize) stackOverflow(); // the main program does not fit
+      sp = fp = hp = deepest = stackSize;
+      methods = new int[code.length];
+      if (engine == Engine.THREADED && !checked) this.threaded = threaded != null ? threaded : new ThreadedCode(code); // decode once
+      if (engine == Engine.TIERED && !checked) this.jit = jit != null ? jit : new TieredCompiler(code);
+      if (heap == Heap.COUNTED) rc = new ReferenceCounter(memory); else gc = new GarbageCollector(memory);
+    }
+
+    // size words of memory in the given storage
+    static Memory memory(Storage storage, Path file, int size) {
+      switch (storage) {
+        case NATIVE: return BufferMemory.allocate(size);
+        case MAPPED: return BufferMemory.map(file, size);
+        default: return new ArrayMemory(size);
+      }
+    }
+
+    // a VM for the program of a binary executable (see Executable), checked if the file has no labelRefs
+    public static ExecuteVM load(Path file, Engine engine) throws IOException {
+      Executable program = Executable.read(file);
+      return new ExecuteVM(program.code, engine, program.heap, verify(program.code, program.labelRefs));
+    }
+
+    // a VM in the state saved by the checkpoint instruction, cpu() goes on from there
+    public static ExecuteVM restore(Path file, Engine engine) throws IOException {
+      return Checkpoint.read(file, engine);
+    }
+
+    // verified code on the given handlers, e.g. counting ones (see Profiler)
+    ExecuteVM(int[] code, Verifier verified, ThreadedCode threaded) {
+      this(code, Engine.THREADED, Heap.COLLECTED, STACKSIZE, HEAPSIZE, new ArrayMemory(STACKSIZE + Math.min(HEAPSIZE, INITIAL_HEAP)), Objects.requireNonNull(verified), threaded, null);
     }
     
+    // the file the checkpoint instruction writes the state of the VM to (see Checkpoint)
+    public void checkpointTo(Path file) {
+      checkpoint = file;
+    }
+
+    // the sink of the values printed by the program, Output.console() if not set
+    public void outputTo(Output output) {
+      this.output = output;
+    }
+
     public void cpu() {
+      try {
+        if (checked) new CheckedInterpreter(this).run();
+        else if (engine == Engine.THREADED) threaded.run(this);
+        else if (engine == Engine.TOS) TosInterpreter.run(this, code);
+        else interpret();
+      } finally {
+        output.flush();
+      }
+    }
+
+    // runs at most budget instructions from where the VM stopped, so that a thread can interleave
+    // many VMs (see Scheduler); false once the program halted. Slices run on the handlers of
+    // ThreadedCode whatever the engine, which are the only ones that keep all of the state in the
+    // registers of the VM between instructions, or on CheckedInterpreter for unverified code.
+    // The output is flushed when the program stops.
+    public boolean slice(int budget) {
+      boolean running = false;
+      try {
+        if (checked) {
+          if (checker == null) checker = new CheckedInterpreter(this);
+          running = checker.run(budget);
+        } else {
+          if (threaded == null) threaded = new ThreadedCode(code);
+          running = threaded.run(this, budget);
+        }
+        return running;
+      } finally {
+        if (!running) output.flush();
+      }
+    }
+
+    // instructions run by slice() so far
+    public long executed() {
+      return executed;
+    }
+
+    // most words the stack held in slice() so far
+    public int stackDepth() {
+      return stackSize - deepest;
+    }
+
+    // words of heap in use, up to $hp (the memory allocated ahead of it is not counted)
+    public int heapWords() {
+      return hp - stackSize;
+    }
+
+    // fetch loop, left at halt; with TIERED, calls and rets go to the compiled code, if there is some
+    private void interpret() {
       while ( true ) {
         int bytecode = code[ip++]; // fetch
         int v1,v2;
@@ -53,10 +237,10 @@ public class ExecuteVM {
             break;
           case SVMParser.STOREW : //
             address = pop();
-            memory[address] = pop();    
+            memory.set(address, pop());    
             break;
           case SVMParser.LOADW : //
-            push(memory[pop()]);
+            push(memory.get(pop()));
             break;
           case SVMParser.BRANCH : 
             address = code[ip];
@@ -78,6 +262,7 @@ public class ExecuteVM {
             address = pop();
             ra = ip;
             ip = address;
+            if (jit != null) jit.run(this, true);
             break;
          case SVMParser.STORERA : //
             ra=pop();
@@ -107,20 +292,210 @@ public class ExecuteVM {
             push(hp);
             break;
          case SVMParser.PRINT :
-            System.out.println((sp<MEMSIZE)?memory[sp]:"Empty stack!");
+            output.print(memory.get(sp)); // verified: there is a value
             break;
          case SVMParser.HALT :
             return;
+         case SVMParser.CHECKPOINT :
+            checkpoint();
+            break;
+         case SVMParser.LOADWOFF :
+            push(memory.get(pop() + code[ip++]));
+            break;
+         case SVMParser.LOADFPW :
+            push(memory.get(fp + code[ip++]));
+            break;
+         case SVMParser.LOADGLOBAL :
+            push(memory.get(stackSize + code[ip++]));
+            break;
+         case SVMParser.STOREFPW :
+            memory.set(fp + code[ip++], pop());
+            break;
+         case SVMParser.ADDI :
+            push(pop() + code[ip++]);
+            break;
+         case SVMParser.DUP :
+            tm=pop();
+            push(tm);
+            push(tm);
+            break;
+         case SVMParser.STOREHPINC :
+            memory.set(hp++, pop());
+            break;
+         case SVMParser.EQ :
+            v1=pop();
+            v2=pop();
+            push(v2 == v1 ? 1 : 0);
+            break;
+         case SVMParser.LE :
+            v1=pop();
+            v2=pop();
+            push(v2 <= v1 ? 1 : 0);
+            break;
+         case SVMParser.LT :
+            v1=pop();
+            v2=pop();
+            push(v2 < v1 ? 1 : 0);
+            break;
+         case SVMParser.AND :
+            v1=pop();
+            v2=pop();
+            push(v2 != 0 && v1 != 0 ? 1 : 0);
+            break;
+         case SVMParser.OR :
+            v1=pop();
+            v2=pop();
+            push(v2 != 0 || v1 != 0 ? 1 : 0);
+            break;
+         case SVMParser.NOT :
+            push(pop() == 0 ? 1 : 0);
+            break;
+         case SVMParser.NEW :
+            newObject(code[ip++]);
+            break;
+         case SVMParser.ALLOC :
+            allocate(code[ip++]);
+            break;
+         case SVMParser.INCREF :
+            incref(memory.get(sp));
+            break;
+         case SVMParser.DECREF : // the value stays on the stack
+            decref(memory.get(sp + code[ip++]));
+            break;
+         case SVMParser.CALL : // top of stack (Access Link) stays
+            address = memory.get(memory.get(sp) + code[ip++]);
+            ra = ip;
+            ip = address;
+            if (jit != null) jit.run(this, true);
+            break;
+         case SVMParser.CALLMETHOD : // top of stack (object, Access Link) stays
+            address = method(ip-1, memory.get(sp));
+            ra = ++ip;
+            ip = address;
+            if (jit != null) jit.run(this, true);
+            break;
+         case SVMParser.ENTER :
+            if (sp < stackGuard) stackOverflow();
+            fp=sp;
+            push(ra);
+            break;
+         case SVMParser.RET : // result, locals, $ra, Access Link, parameters, Control Link
+            tm=pop();
+            sp+=code[ip++];
+            ra=pop();
+            sp+=1+code[ip++];
+            fp=pop();
+            push(tm);
+            ip=ra;
+            if (jit != null) jit.run(this, false);
+            break;
         }
       }
     } 
     
+    // dispatch pointer on top of n fields, the first popped field goes first in the new block
+    void newObject(int n) {
+      int block=reserve(n+1);
+      int dispatch=pop();
+      memory.copy(sp, block, n);
+      sp+=n;
+      memory.set(block+n, dispatch);
+      if (rc != null) rc.object(block, n+1); else gc.object(block, n+1);
+      push(block+n); // object address (points to dispatch pointer)
+    }
+
+    // n words, the first popped goes first in the new block
+    void allocate(int n) {
+      int block=reserve(n);
+      memory.copy(sp, block, n);
+      sp+=n;
+      if (rc != null) rc.table(block, n); else gc.table(block, n);
+      push(block);
+    }
+
+    // first word of a new block: a free block or $hp. When the heap is full the COLLECTED one
+    // is collected (the words to copy are still on the stack), and the memory grows if that
+    // did not leave it at least half empty
+    private int reserve(int words) {
+      int block=rc != null ? rc.fit(memory, words) : gc.fit(words);
+      if (block >= 0) return block;
+      if (hp+words > memory.size()) {
+        if (gc != null) {
+          hp=gc.collect(memory, stackSize, hp, sp, fp, ra, tm);
+          Arrays.fill(methods, 0); // dispatch tables that are not pinned may have moved
+          block=gc.fit(words);
+          if (block >= 0) return block;
+        }
+        if (hp+words > memory.size() || memory.size() < stackSize+heapSize && 2*(hp-stackSize) > memory.size()-stackSize)
+          grow(hp+words);
+      }
+      block=hp;
+      hp+=words;
+      return block;
+    }
+
+    // doubles the heap, or more if needed to reach the given length of memory
+    void grow(int length) {
+      int limit=stackSize+heapSize;
+      if (length > limit) throw new IllegalStateException("Out of heap memory");
+      memory=memory.resize((int) Math.min(limit, Math.max(length, stackSize + 2L*(memory.size()-stackSize))));
+      if (rc != null) rc.resize(memory.size()); else gc.resize(memory.size());
+    }
+
+    // target of the callm at address site for the object: word k of its dispatch table, k the operand.
+    // Dispatch tables do not change, so the last dispatch pointer seen at the site and its target are
+    // kept in methods: a site that always sees objects of the same class loads only the dispatch pointer
+    int method(int site, int object) {
+      int dispatch = memory.get(object);
+      if (methods[site] == dispatch) return methods[site+1];
+      int target = memory.get(dispatch + code[site+1]);
+      methods[site] = dispatch;
+      methods[site+1] = target;
+      return target;
+    }
+
+    // the Verifier of code read from a file, null if there are no labelRefs or the code does not
+    // pass: the code runs checked
+    static Verifier verify(int[] code, Set<Integer> labelRefs) {
+      if (labelRefs == null) return null;
+      try {
+        return Verifier.verify(code, labelRefs);
+      } catch (IllegalArgumentException e) {
+        if (Boolean.getBoolean("svm.verify.trace")) System.err.println("Running checked: "+e.getMessage());
+        return null;
+      }
+    }
+
+    // the registers are up to date, ip at the next instruction
+    void checkpoint() {
+      if (checkpoint == null) return;
+      output.flush(); // what was printed before the snapshot is out
+      try {
+        Checkpoint.write(this, checkpoint);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    void stackOverflow() {
+      throw new IllegalStateException("Stack overflow");
+    }
+
+    // incref and decref of the COUNTED heap, nothing to do on the COLLECTED one
+    void incref(int address) {
+      if (rc != null) rc.increment(address);
+    }
+
+    void decref(int address) {
+      if (rc != null) rc.decrement(memory, address);
+    }
+    
     private int pop() {
-      return memory[sp++];
+      return memory.get(sp++);
     }
     
     private void push(int v) {
-      memory[--sp] = v;
+      memory.set(--sp, v);
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package svm;
+
+import java.util.*;
+
+/**
+ * Fusion stage run after assembly: rewrites the runs of instructions recognised
+ * by the enabled superinstructions and relocates every code address.
+ * Code addresses are the operands of the branches and the label operands of
+ * push (the labelRefs of SVMParser), e.g. function addresses and dispatch tables.
+ * A run is fused only if no label points inside it and none of its push
+ * operands is a label; return addresses are taken by js at run time, so they
+ * always refer to the fused code.
+ */
+public class Fusion {
+
+    private final List<Superinstruction> patterns;
+    private Set<Integer> labelRefs;
+    private int[] newAddress;
+
+    public Fusion(Collection<Superinstruction> enabled) {
+      patterns = new ArrayList<>(enabled);
+      patterns.sort(Comparator.comparingInt((Superinstruction s) -> s.ops.length).reversed()); // longest run first
+    }
+
+    // fused version of the code; labelRefs are the code addresses holding a label
+    public int[] fuse(int[] code, Set<Integer> labelRefs) {
+      Set<Integer> targets = new HashSet<>();
+      for (int j : labelRefs) targets.add(code[j]);
+      for (int i = 0; i < code.length; i += InstructionSet.length(code[i]))
+        if (InstructionSet.isBranch(code[i])) targets.add(code[i+1]);
+
+      int[] fused = new int[code.length];
+      int[] newAddress = new int[code.length+1]; // new address of every old instruction start
+      Set<Integer> refs = new HashSet<>();        // old addresses of the fused words holding a code address
+      int[] oldRef = new int[code.length];
+      int i = 0, k = 0;
+      while (i < code.length) {
+        Superinstruction s = match(code, i, labelRefs, targets);
+        newAddress[i] = k;
+        if (s == null) {
+          int length = InstructionSet.length(code[i]);
+          for (int w = 0; w < length; w++) {
+            if (w > 0 && (labelRefs.contains(i+w) || InstructionSet.isBranch(code[i]))) {
+              refs.add(k);
+              oldRef[k] = code[i+w];
+            }
+            fused[k++] = code[i+w];
+          }
+          i += length;
+        } else {
+          int start = k;
+          fused[k++] = s.opcode;
+          for (int p = 0; p < s.ops.length; p++) {
+            newAddress[i] = start;
+            if (s.ops[p] == SVMParser.PUSH && s.operands[p] == null) fused[k++] = code[i+1];
+            i += InstructionSet.length(s.ops[p]);
+          }
+        }
+      }
+      newAddress[code.length] = k;
+      for (int r : refs) fused[r] = newAddress[oldRef[r]];
+      this.labelRefs = refs;
+      this.newAddress = newAddress;
+      return fused;
+    }
+
+    // code addresses holding a label in the last fused code
+    public Set<Integer> labelRefs() {
+      return labelRefs;
+    }
+
+    // address in the last fused code of the instruction at the given address of the original code
+    public int newAddress(int address) {
+      return newAddress[address];
+    }
+
+    private Superinstruction match(int[] code, int start, Set<Integer> labelRefs, Set<Integer> targets) {
+      for (Superinstruction s : patterns) {
+        int i = start;
+        boolean matches = true;
+        for (int p = 0; p < s.ops.length && matches; p++) {
+          if (i >= code.length || code[i] != s.ops[p] || (p > 0 && targets.contains(i))) matches = false;
+          else if (s.ops[p] == SVMParser.PUSH)
+            matches = i+1 < code.length && !labelRefs.contains(i+1) && (s.operands[p] == null || s.operands[p] == code[i+1]);
+          i += InstructionSet.length(s.ops[p]);
+        }
+        if (matches) return s;
+      }
+      return null;
+    }
+
+}
@@ -0,0 +1,189 @@
+package svm;
+
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Mark-compact garbage collector for the heap of ExecuteVM, run when the heap
+ * is full, before growing it.
+ * The heap is a sequence of blocks allocated by new (fields and dispatch pointer)
+ * and alloc (dispatch tables); their sizes are kept on the side, so the layout of
+ * the heap is the same as without collector. The layout of an object comes from
+ * its dispatch table: CodeGenerationASTVisitor ends the table of every class with
+ * fields/32+1 mask words, bit j of word j/32 telling whether field j (at
+ * offset -1-j) is a reference.
+ * Stack words and registers are untyped, so they are roots conservatively: a value
+ * that is the address of an object (its dispatch pointer) or of a table keeps the
+ * block alive and pins it where it is. Fields and dispatch pointers are exact:
+ * the blocks they point to slide down over the dead ones, in address order, up to
+ * the next pinned block, and the fields and dispatch pointers are rewritten.
+ * The gaps left in front of pinned blocks are reused by the next allocations.
+ * The tables of sizes, blocks and forwarding addresses, a word for each word of
+ * memory, are Memory of the same backend as the memory of the VM (see
+ * Memory.create); only the mark bits and the gaps are on the Java heap.
+ */
+final class GarbageCollector {
+
+    private Memory sizes;   // at the first word of each block: +size for a table or a gap, -size for an object
+    private Memory blockOf; // at the address of each block (object: dispatch pointer, table: first word): first word + 1
+    private Memory forward; // new first word of each live block during a collection
+    private final BitSet marked = new BitSet(), pinned = new BitSet(), free = new BitSet();
+    private final TreeMap<Integer,Integer> gaps = new TreeMap<>(); // first word -> size
+
+    // tables for the given memory of the VM
+    GarbageCollector(Memory memory) {
+      sizes = memory.create(memory.size());
+      blockOf = memory.create(memory.size());
+      forward = memory.create(memory.size());
+    }
+
+    void resize(int memsize) {
+      sizes = sizes.resize(memsize);
+      blockOf = blockOf.resize(memsize);
+      forward = forward.create(memsize);
+    }
+
+    void object(int start, int size) {
+      blockOf.set(start, 0);
+      sizes.set(start, -size);
+      blockOf.set(start+size-1, start+1);
+    }
+
+    void table(int start, int size) {
+      if (size == 0) return;
+      sizes.set(start, size);
+      blockOf.set(start, start+1);
+    }
+
+    // first word of a gap of at least the given size, taken out of the free space, -1 if there is none
+    int fit(int size) {
+      if (size == 0) return -1;
+      for (Map.Entry<Integer,Integer> gap : gaps.entrySet()) {
+        int start = gap.getKey(), left = gap.getValue() - size;
+        if (left < 0) continue;
+        gaps.remove(start);
+        free.clear(start);
+        if (left > 0) gap(start+size, left);
+        return start;
+      }
+      return -1;
+    }
+
+    private void gap(int start, int size) {
+      table(start, size);
+      free.set(start);
+      gaps.put(start, size);
+    }
+
+    // first word of the block at the given address, -1 if the value is not a block address
+    private int block(int value, int hp) {
+      if (value < 0 || value >= hp) return -1;
+      int b = blockOf.get(value)-1;
+      return b < 0 || free.get(b) ? -1 : b;
+    }
+
+    /**
+     * Collects the heap from base up to hp, with the stack from sp up to base and
+     * the registers as roots, and returns the new hp. The heap is left as it is if
+     * it was not entirely allocated by new and alloc (e.g. by sw and shp).
+     */
+    int collect(Memory memory, int base, int hp, int sp, int... registers) {
+      for (int a = base; a < hp; a += Math.abs(sizes.get(a))) if (sizes.get(a) == 0) return hp;
+      marked.clear();
+      pinned.clear();
+
+      Deque<Integer> work = new ArrayDeque<>();
+      for (int i = sp; i < base + registers.length; i++) {
+        int b = block(i < base ? memory.get(i) : registers[i-base], hp);
+        if (b >= 0) {
+          pinned.set(b);
+          if (!marked.get(b)) { marked.set(b); work.push(b); }
+        }
+      }
+      while (!work.isEmpty()) {
+        int b = work.pop();
+        if (sizes.get(b) > 0) continue; // table: code addresses
+        for (int a : references(memory, b, hp)) {
+          int t = block(memory.get(a), hp);
+          if (t >= 0 && !marked.get(t)) { marked.set(t); work.push(t); }
+        }
+      }
+
+      int end = base;
+      for (int a = base; a < hp; a += Math.abs(sizes.get(a))) {
+        if (!marked.get(a)) continue;
+        if (pinned.get(a)) end = a;
+        forward.set(a, end);
+        end += Math.abs(sizes.get(a));
+      }
+      for (int a = base; a < hp; a += Math.abs(sizes.get(a))) // rewrite while the old addresses are still mapped
+        if (marked.get(a) && sizes.get(a) < 0)
+          for (int r : references(memory, a, hp)) {
+            int t = block(memory.get(r), hp);
+            if (t >= 0) memory.set(r, memory.get(r) + (forward.get(t) - t));
+          }
+
+      // blocks only move down, so the entries of each old block are cleared and those of its
+      // new place written before the next old block is read
+      free.clear();
+      gaps.clear();
+      end = base;
+      for (int a = base, next; a < hp; a = next) {
+        int old = sizes.get(a), size = Math.abs(old);
+        next = a+size;
+        sizes.set(a, 0);
+        blockOf.set(a, 0);
+        blockOf.set(next-1, 0);
+        if (!marked.get(a)) continue;
+        int to = forward.get(a);
+        if (to > end) gap(end, to-end); // in front of a pinned block
+        memory.copy(a, to, size);
+        if (old < 0) object(to, size); else table(to, size);
+        end = to+size;
+      }
+      return end;
+    }
+
+    // the blocks from base up to hp for Checkpoint, in address order: -size for an object,
+    // +size for a table, 0 and the size for a gap; none if the heap cannot be collected
+    int[] save(int base, int hp) {
+      int words = 0;
+      for (int a = base; a < hp; a += Math.abs(sizes.get(a)), words++) {
+        if (sizes.get(a) == 0) return new int[0];
+        if (free.get(a)) words++;
+      }
+      int[] blocks = new int[words];
+      for (int a = base, i = 0; a < hp; a += Math.abs(sizes.get(a))) {
+        if (free.get(a)) blocks[i++] = 0;
+        blocks[i++] = sizes.get(a);
+      }
+      return blocks;
+    }
+
+    // the blocks saved by save, from base on
+    void restore(int base, IntBuffer blocks, int words) {
+      int end = blocks.position()+words;
+      for (int a = base; blocks.position() < end; ) {
+        int size = blocks.get();
+        if (size < 0) object(a, -size);
+        else if (size > 0) table(a, size);
+        else gap(a, size = blocks.get());
+        a += Math.abs(size);
+      }
+    }
+
+    // addresses of the dispatch pointer and of the reference fields of the object at start
+    private List<Integer> references(Memory memory, int start, int hp) {
+      int size = -sizes.get(start), object = start+size-1, fields = size-1;
+      List<Integer> refs = new ArrayList<>();
+      refs.add(object);
+      int table = block(memory.get(object), hp);
+      if (table < 0 || sizes.get(table) <= 0) return refs;
+      int masks = fields/32+1, first = table+sizes.get(table)-masks;
+      if (first < table) return refs; // not the table of a class
+      for (int j = 0; j < fields; j++)
+        if ((memory.get(first + j/32) >>> (j%32) & 1) != 0) refs.add(object-1-j);
+      return refs;
+    }
+
+}
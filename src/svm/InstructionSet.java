@@ -0,0 +1,66 @@
+package svm;
+
+/**
+ * Static information on the SVM instructions, indexed by their SVMParser token type.
+ */
+public class InstructionSet {
+
+    // number of words taken by the instruction (opcode plus operands)
+    public static int length(int opcode) {
+      switch ( opcode ) {
+        case SVMParser.PUSH:
+        case SVMParser.BRANCH:
+        case SVMParser.BRANCHEQ:
+        case SVMParser.BRANCHLESSEQ:
+        case SVMParser.LOADWOFF:
+        case SVMParser.LOADFPW:
+        case SVMParser.LOADGLOBAL:
+        case SVMParser.STOREFPW:
+        case SVMParser.ADDI:
+        case SVMParser.CALL:
+        case SVMParser.CALLMETHOD:
+        case SVMParser.NEW:
+        case SVMParser.ALLOC:
+        case SVMParser.DECREF:
+          return 2;
+        case SVMParser.RET:
+          return 3;
+        default:
+          return 1;
+      }
+    }
+
+    // true if the opcode is the one of an instruction (and not of another SVMParser token)
+    public static boolean isInstruction(int opcode) {
+      return opcode > 0 && opcode != SVMParser.COL && SVMParser.VOCABULARY.getLiteralName(opcode) != null;
+    }
+
+    // true if the operand of the instruction is always a code address
+    public static boolean isBranch(int opcode) {
+      return opcode == SVMParser.BRANCH || opcode == SVMParser.BRANCHEQ || opcode == SVMParser.BRANCHLESSEQ;
+    }
+
+    // true if the instruction jumps to a subroutine, saving the address of the next one in $ra
+    public static boolean isCall(int opcode) {
+      return opcode == SVMParser.JS || opcode == SVMParser.CALL || opcode == SVMParser.CALLMETHOD;
+    }
+
+    // true if execution does not simply go on with the next instruction
+    public static boolean isControlTransfer(int opcode) {
+      return isBranch(opcode) || isCall(opcode) || opcode == SVMParser.RET || opcode == SVMParser.HALT;
+    }
+
+    // assembly mnemonic of the instruction, e.g. "push"
+    public static String mnemonic(int opcode) {
+      String literal = SVMParser.VOCABULARY.getLiteralName(opcode);
+      return literal == null ? "?"+opcode : literal.substring(1, literal.length()-1);
+    }
+
+    // opcode of the instruction with the given mnemonic, -1 if there is none
+    public static int opcode(String mnemonic) {
+      for (int op = 1; op <= SVMParser.VOCABULARY.getMaxTokenType(); op++)
+        if (("'"+mnemonic+"'").equals(SVMParser.VOCABULARY.getLiteralName(op))) return op;
+      return -1;
+    }
+
+}
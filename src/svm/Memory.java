@@ -0,0 +1,38 @@
+package svm;
+
+import java.nio.IntBuffer;
+
+/**
+ * Words of the stack and of the heap of ExecuteVM, at addresses from 0 to size()-1.
+ * ArrayMemory, the default, keeps them in an int[] on the Java heap; BufferMemory
+ * keeps them off the Java heap, in native memory or in a file mapped into memory.
+ * The engines, TieredCompiler and the heap managers only go through this class,
+ * so a backend does not change the behaviour of a program, and the heap managers
+ * keep their tables in memories of the same backend (see create), so that they stay
+ * off the Java heap with the words they describe. It is an abstract class
+ * rather than an interface so that, while ArrayMemory is the only backend loaded,
+ * the JIT of the JVM binds every call to it without a type check.
+ */
+abstract class Memory {
+
+    abstract int get(int address);
+
+    abstract void set(int address, int value);
+
+    abstract int size();
+
+    // moves words inside the memory, overlapping ranges included (as System.arraycopy)
+    abstract void copy(int from, int to, int words);
+
+    // a memory of the given size with the same words up to the old size, possibly this one
+    abstract Memory resize(int size);
+
+    // a new memory of the given size of the same backend, all zeros
+    abstract Memory create(int size);
+
+    // bulk copies of words between the memory and a buffer (see Checkpoint)
+    abstract void read(int address, int words, IntBuffer to);
+
+    abstract void write(int address, int words, IntBuffer from);
+
+}
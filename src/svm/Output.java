@@ -0,0 +1,33 @@
+package svm;
+
+/**
+ * Where print sends the values of ExecuteVM (see ExecuteVM.outputTo).
+ * The default, console(), prints every value with System.out.println as soon as
+ * it is printed; TextOutput writes the same text through a buffer, ChannelOutput
+ * writes the values as binary ints to a file, CollectingOutput keeps them in memory
+ * and PublisherOutput streams them to Flow subscribers.
+ * The VM calls flush when cpu() returns and before a checkpoint, so buffered values
+ * are out by then; closing a sink is up to its owner. As Memory, this is an abstract
+ * class so that the JIT binds the calls to the only sink loaded without a type check.
+ */
+public abstract class Output {
+
+    private static final Output CONSOLE = new Output() {
+      @Override
+      public void print(int value) {
+        System.out.println(value);
+      }
+    };
+
+    // one line per value on System.out, as looked up at every print
+    public static Output console() {
+      return CONSOLE;
+    }
+
+    public abstract void print(int value);
+
+    // writes out the buffered values, if any
+    public void flush() {
+    }
+
+}
@@ -0,0 +1,93 @@
+package svm;
+
+import java.util.*;
+import org.antlr.v4.runtime.*;
+
+/**
+ * Execution profile of a corpus of assembled programs, used to find the
+ * instruction runs worth fusing into superinstructions.
+ * Every program is run on an instrumented ThreadedCode that counts how many
+ * times each instruction is executed. A straight-line run (no branch target
+ * after its first instruction, no control transfer before its last one) is
+ * executed as many times as its first instruction, so the dynamic count of
+ * every run of up to maxRun instructions follows from the per-address counts.
+ * Operands are abstracted away: "lfp push add lw" stands for every lfp; push k; add; lw.
+ */
+public class Profiler {
+
+    private final int maxRun;
+    private final Map<String,Long> runCounts = new HashMap<>();
+    private long executed = 0;
+
+    public Profiler(int maxRun) {
+      this.maxRun = maxRun;
+    }
+
+    // runs the program (labelRefs are the code addresses holding a label) and adds it to the profile;
+    // throws IllegalArgumentException if the code does not pass the Verifier, as it would run on
+    // CheckedInterpreter instead of the counting handlers
+    public void profile(int[] code, Set<Integer> labelRefs) {
+      Verifier verified = Verifier.verify(code, labelRefs);
+      ThreadedCode threaded = new ThreadedCode(code);
+      long[] counts = new long[code.length];
+      threaded.countInto(counts);
+      new ExecuteVM(code, verified, threaded).cpu();
+
+      List<Integer> starts = new ArrayList<>();
+      Set<Integer> targets = new HashSet<>();
+      for (int j : labelRefs) targets.add(code[j]);
+      for (int i = 0; i < code.length; i += InstructionSet.length(code[i])) {
+        starts.add(i);
+        if (InstructionSet.isBranch(code[i])) targets.add(code[i+1]);
+        if (InstructionSet.isCall(code[i])) targets.add(i+1); // return address
+        executed += counts[i];
+      }
+
+      for (int s = 0; s < starts.size(); s++) {
+        long count = counts[starts.get(s)];
+        if (count == 0) continue;
+        String run = InstructionSet.mnemonic(code[starts.get(s)]);
+        for (int k = s+1; k < starts.size() && k-s < maxRun; k++) {
+          int prev = starts.get(k-1), cur = starts.get(k);
+          if (InstructionSet.isControlTransfer(code[prev]) || targets.contains(cur)) break;
+          run = run+" "+InstructionSet.mnemonic(code[cur]);
+          runCounts.merge(run, count, Long::sum);
+        }
+      }
+    }
+
+    public long executed() {
+      return executed;
+    }
+
+    // dynamic count of the run, e.g. count("lfp push add lw")
+    public long count(String run) {
+      return runCounts.getOrDefault(run, 0L);
+    }
+
+    // dispatches that fusing the run into one instruction would save, as a share of all executed instructions
+    public double share(String run) {
+      return executed == 0 ? 0 : (double) count(run) * (run.split(" ").length-1) / executed;
+    }
+
+    // the runs sorted by the number of dispatches their fusion would save
+    public List<String> candidates() {
+      List<String> runs = new ArrayList<>(runCounts.keySet());
+      runs.sort(Comparator.comparingDouble(this::share).reversed());
+      return runs;
+    }
+
+    // profiles the given .asm files and prints the best candidate runs
+    public static void main(String[] args) throws Exception {
+      Profiler profiler = new Profiler(6);
+      for (String fileName : args) {
+        SVMParser parser = new SVMParser(new CommonTokenStream(new SVMLexer(CharStreams.fromFileName(fileName))));
+        parser.assembly();
+        profiler.profile(parser.code, parser.labelRefs());
+      }
+      System.out.println("Executed "+profiler.executed()+" instructions.");
+      for (String run : profiler.candidates().subList(0, Math.min(30, profiler.candidates().size())))
+        System.out.printf("%6.2f%%  %8d  %s%n", 100*profiler.share(run), profiler.count(run), run);
+    }
+
+}
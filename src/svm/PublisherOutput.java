@@ -0,0 +1,41 @@
+package svm;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * The values streamed to Flow subscribers, each one in its own thread of the
+ * common pool. Backpressure reaches the VM: print blocks while a subscriber that
+ * has not requested more values has bufferSize of them pending. Values printed
+ * while there are no subscribers are dropped, and the subscribers complete when
+ * the owner of the sink closes it.
+ */
+public final class PublisherOutput extends Output implements Flow.Publisher<Integer>, AutoCloseable {
+
+    private final SubmissionPublisher<Integer> publisher;
+
+    public PublisherOutput() {
+      this(Flow.defaultBufferSize());
+    }
+
+    public PublisherOutput(int bufferSize) {
+      publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), bufferSize);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Integer> subscriber) {
+      publisher.subscribe(subscriber);
+    }
+
+    @Override
+    public void print(int value) {
+      publisher.submit(value);
+    }
+
+    @Override
+    public void close() {
+      publisher.close();
+    }
+
+}
@@ -0,0 +1,115 @@
+grammar RVM;
+
+@parser::header {
+import java.util.*;
+}
+
+@lexer::members {
+public int lexicalErrors=0;
+}
+   
+@parser::members { 
+public int[] code = new int[RegisterVM.CODESIZE]; // grows as needed
+private int i = 0;
+private Map<String,Integer> labelDef = new HashMap<>();
+private Map<Integer,String> labelRef = new HashMap<>();
+
+private void emit(Token... operands) { // register and integer operands
+	for (Token t : operands) code[i++] = Integer.parseInt(t.getText());
+}
+
+private void ensure(int words) { // room for the next instruction
+	if (i+words > code.length) code = Arrays.copyOf(code, Math.max(2*code.length, i+words));
+}
+}
+
+/*------------------------------------------------------------------
+ * PARSER RULES
+ * Registers are the words of the frame, numbered from $fp: 0 is the
+ * Access Link (and the function result), 1.. the parameters, -1 the
+ * return address, -2 the Control Link, -3.. locals and temporaries.
+ *------------------------------------------------------------------*/
+   
+assembly: instruction* EOF 	{ for (Integer j: labelRef.keySet()) 
+								code[j]=labelDef.get(labelRef.get(j)); 
+							} ;
+
+instruction @init { ensure(5); } : 
+        LOADI d=INTEGER n=INTEGER   {code[i++] = LOADI; emit($d,$n);}
+	  | LOADI d=INTEGER l=LABEL     {code[i++] = LOADI; emit($d);
+	    		                     labelRef.put(i++,$l.text);} 		     
+	  | MOVE d=INTEGER s=INTEGER    {code[i++] = MOVE; emit($d,$s);}
+	  | LOADFP d=INTEGER            {code[i++] = LOADFP; emit($d);} // address of the frame
+	  | ADD d=INTEGER a=INTEGER b=INTEGER  {code[i++] = ADD; emit($d,$a,$b);}
+	  | SUB d=INTEGER a=INTEGER b=INTEGER  {code[i++] = SUB; emit($d,$a,$b);}
+	  | MULT d=INTEGER a=INTEGER b=INTEGER {code[i++] = MULT; emit($d,$a,$b);}
+	  | DIV d=INTEGER a=INTEGER b=INTEGER  {code[i++] = DIV; emit($d,$a,$b);}
+	  | ADDI d=INTEGER a=INTEGER n=INTEGER {code[i++] = ADDI; emit($d,$a,$n);}
+	  | EQ d=INTEGER a=INTEGER b=INTEGER   {code[i++] = EQ; emit($d,$a,$b);}
+	  | LE d=INTEGER a=INTEGER b=INTEGER   {code[i++] = LE; emit($d,$a,$b);}
+	  | LT d=INTEGER a=INTEGER b=INTEGER   {code[i++] = LT; emit($d,$a,$b);}
+	  | AND d=INTEGER a=INTEGER b=INTEGER  {code[i++] = AND; emit($d,$a,$b);}
+	  | OR d=INTEGER a=INTEGER b=INTEGER   {code[i++] = OR; emit($d,$a,$b);}
+	  | NOT d=INTEGER a=INTEGER            {code[i++] = NOT; emit($d,$a);}
+	  | LOADW d=INTEGER a=INTEGER n=INTEGER {code[i++] = LOADW; emit($d,$a,$n);} // word at address $a+n
+	  | LOADGLOBAL d=INTEGER r=INTEGER {code[i++] = LOADGLOBAL; emit($d,$r);} // register r of the main program
+	  | l=LABEL COL     {labelDef.put($l.text,i);}
+	  | BRANCH l=LABEL  {code[i++] = BRANCH;
+                       labelRef.put(i++,$l.text);}
+	  | BRANCHEQ a=INTEGER b=INTEGER l=LABEL {code[i++] = BRANCHEQ; emit($a,$b);
+                        labelRef.put(i++,$l.text);}
+	  | BRANCHLESSEQ a=INTEGER b=INTEGER l=LABEL {code[i++] = BRANCHLESSEQ; emit($a,$b);
+                          labelRef.put(i++,$l.text);}
+	  | BRANCHNZ a=INTEGER l=LABEL {code[i++] = BRANCHNZ; emit($a);
+                          labelRef.put(i++,$l.text);}
+	  | NEW d=INTEGER b=INTEGER n=INTEGER p=INTEGER {code[i++] = NEW; emit($d,$b,$n,$p);}
+	  | ALLOC d=INTEGER b=INTEGER n=INTEGER {code[i++] = ALLOC; emit($d,$b,$n);}
+	  | CALL c=INTEGER n=INTEGER  {code[i++] = CALL; emit($c,$n);}
+	  | CALLR c=INTEGER t=INTEGER {code[i++] = CALLR; emit($c,$t);}
+	  | RET s=INTEGER   {code[i++] = RET; emit($s);}
+	  | PRINT s=INTEGER {code[i++] = PRINT; emit($s);}
+	  | HALT            {code[i++] = HALT;}
+	  ;
+	  
+/*------------------------------------------------------------------
+ * LEXER RULES
+ *------------------------------------------------------------------*/
+
+LOADI	 : 'li' ; 	
+MOVE	 : 'mov' ; 	
+LOADFP	 : 'lfp' ; 	
+ADD	 : 'add' ;  	
+SUB	 : 'sub' ;	
+MULT	 : 'mult' ;  	
+DIV	 : 'div' ;	
+ADDI	 : 'addi' ;	
+EQ	 : 'eq' ;	
+LE	 : 'le' ;	
+LT	 : 'lt' ;	
+AND	 : 'and' ;	
+OR	 : 'or' ;	
+NOT	 : 'not' ;	
+LOADW	 : 'lw' ;	
+LOADGLOBAL : 'lwg' ;	
+BRANCH	 : 'b' ;	
+BRANCHEQ : 'beq' ;	
+BRANCHLESSEQ:'bleq' ;	
+BRANCHNZ : 'bnz' ;	
+NEW	 : 'new' ;	
+ALLOC	 : 'alloc' ;	
+CALL	 : 'call' ;	
+CALLR	 : 'callr' ;	
+RET	 : 'ret' ;	
+PRINT	 : 'print' ;	
+HALT	 : 'halt' ;	
+ 
+COL	 : ':' ;
+LABEL	 : ('a'..'z'|'A'..'Z')('a'..'z' | 'A'..'Z' | '0'..'9')* ;
+INTEGER	 : '0' | ('-')?(('1'..'9')('0'..'9')*) ;
+
+COMMENT : '/*' .*? '*/' -> channel(HIDDEN) ;
+
+WHITESP  : (' '|'\t'|'\n'|'\r')+ -> channel(HIDDEN) ;
+
+ERR	     : . { System.out.println("Invalid char: "+getText()+" at line "+getLine()); lexicalErrors++; } -> channel(HIDDEN); 
+
@@ -0,0 +1,110 @@
+package svm;
+
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Reference counts for the COUNTED heap of ExecuteVM.
+ * FOOL objects are never changed after new, so a field can only refer to an older
+ * object and the heap has no cycles: an object can be freed as soon as no field,
+ * variable or value on the stack refers to it. The code generated for this mode
+ * (see CodeGenerationASTVisitor) keeps the counts with incref, when a reference is
+ * copied from a variable or field, and decref, when a variable goes out of scope or
+ * a value is dropped. A new object starts with count 1 for the reference that new
+ * leaves on the stack, and its fields take over the references of its arguments.
+ * Freed blocks go to a free list per size, which new and alloc use before growing
+ * the heap, and the references in the fields of a freed object (given by the layout
+ * at the end of its dispatch table) are dropped in turn.
+ * The counts, the sizes and the heads of the free lists are Memory of the same
+ * backend as the memory of the VM (see Memory.create), a word for each word of memory.
+ */
+final class ReferenceCounter {
+
+    private Memory counts; // at the address of each object (dispatch pointer), 0 at any other word
+    private Memory sizes;  // at the address of each object and of each table
+    private Memory free;   // first word + 1 of the first free block of each size, 0 if none; the next one is in its first word, -1 if none
+    private final Deque<Integer> dropped = new ArrayDeque<>();
+
+    // tables for the given memory of the VM
+    ReferenceCounter(Memory memory) {
+      counts = memory.create(memory.size());
+      sizes = memory.create(memory.size());
+      free = memory.create(memory.size()+1);
+    }
+
+    void resize(int memsize) {
+      counts = counts.resize(memsize);
+      sizes = sizes.resize(memsize);
+      free = free.resize(memsize+1);
+    }
+
+    void object(int start, int size) {
+      counts.set(start+size-1, 1);
+      sizes.set(start+size-1, size);
+    }
+
+    void table(int start, int size) {
+      if (size > 0) sizes.set(start, size);
+    }
+
+    // first word of a free block of the given size, taken off its list, -1 if there is none
+    int fit(Memory memory, int size) {
+      if (size == 0) return -1;
+      int block = free.get(size)-1;
+      if (block >= 0) free.set(size, memory.get(block)+1);
+      return block;
+    }
+
+    void increment(int address) {
+      if (isObject(address)) counts.set(address, counts.get(address)+1);
+    }
+
+    // the objects are freed right away, with an explicit stack for long chains of fields
+    void decrement(Memory memory, int address) {
+      dropped.push(address);
+      while (!dropped.isEmpty()) {
+        int object = dropped.pop();
+        if (!isObject(object)) continue;
+        int count = counts.get(object)-1;
+        counts.set(object, count);
+        if (count > 0) continue;
+        int size = sizes.get(object), start = object-size+1, table = memory.get(object);
+        if (table >= 0 && table < sizes.size() && sizes.get(table) > 0) {
+          int first = table+sizes.get(table)-((size-1)/32+1);
+          for (int j = 0; j < size-1; j++)
+            if ((memory.get(first + j/32) >>> (j%32) & 1) != 0) dropped.push(memory.get(object-1-j));
+        }
+        sizes.set(object, 0);
+        memory.set(start, free.get(size)-1);
+        free.set(size, start+1);
+      }
+    }
+
+    // the state from base up to hp for Checkpoint: the number of blocks, address, size and
+    // count of each block, then size and first block of each free list
+    int[] save(int base, int hp) {
+      List<Integer> state = new ArrayList<>();
+      state.add(0);
+      for (int a = base; a < hp; a++)
+        if (sizes.get(a) != 0) { state.add(a); state.add(sizes.get(a)); state.add(counts.get(a)); state.set(0, state.get(0)+1); }
+      for (int size = 1; size <= hp-base; size++)
+        if (free.get(size) > 0) { state.add(size); state.add(free.get(size)-1); }
+      return state.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // the state saved by save
+    void restore(IntBuffer state, int words) {
+      int end = state.position()+words;
+      for (int blocks = words > 0 ? state.get() : 0; blocks > 0; blocks--) {
+        int address = state.get();
+        sizes.set(address, state.get());
+        counts.set(address, state.get());
+      }
+      while (state.position() < end) free.set(state.get(), state.get()+1);
+    }
+
+    private boolean isObject(int address) {
+      return address >= 0 && address < counts.size() && counts.get(address) > 0;
+    }
+
+}
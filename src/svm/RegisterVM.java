@@ -0,0 +1,200 @@
+package svm;
+
+/**
+ * Register machine alternative to ExecuteVM, running the code assembled by RVMParser.
+ * Registers are the words of the current frame, addressed relative to $fp, so every
+ * instruction names its operands and results directly instead of going through the
+ * stack. Frames grow down from the top of memory and the heap grows up from 0, objects
+ * and dispatch tables have the same layout as in ExecuteVM. Calls and allocations
+ * that would leave less than ExecuteVM.STACKGUARD words between the heap and $fp stop
+ * the program instead of overwriting memory: the heap is never reclaimed, so running
+ * out of either one is the same exhaustion of the memory they share, and is reported
+ * as such whichever instruction finds it.
+ * Values printed go to an Output, as in ExecuteVM.
+ * A call takes the callee frame from the caller's registers: the Access Link goes in
+ * register c and the arguments in c+1.., and $fp moves to c. The callee saves the
+ * return address in its register -1 and the Control Link in -2, and ret leaves the
+ * result in its register 0, i.e. in register c of the caller.
+ */
+public class RegisterVM {
+
+    public static final int CODESIZE = ExecuteVM.CODESIZE;
+    public static final int MEMSIZE = 10000; // default words of memory
+    private static final int GUARD = ExecuteVM.STACKGUARD; // words kept free below $fp for the registers of the frame
+
+    private final int[] code;
+    private final int[] memory;
+
+    private int ip = 0;
+    private final int globals; // frame of the main program: register 0 is the last word of memory
+
+    private int fp;
+    private int hp = 0;
+    private long executed = 0;
+    private Output output = Output.console();
+
+    public RegisterVM(int[] code) {
+      this(code, MEMSIZE);
+    }
+
+    public RegisterVM(int[] code, int memsize) {
+      this.code = code;
+      memory = new int[memsize];
+      globals = fp = memsize-1;
+    }
+
+    // the sink of the values printed by the program, Output.console() if not set
+    public void outputTo(Output output) {
+      this.output = output;
+    }
+
+    // number of instructions executed so far, to compare with Profiler.executed()
+    public long executed() {
+      return executed;
+    }
+
+    public void cpu() {
+      try {
+        run();
+      } finally {
+        output.flush();
+      }
+    }
+
+    private static IllegalStateException exhausted() {
+      return new IllegalStateException("Out of memory: stack and heap meet");
+    }
+
+    private void run() {
+      int[] mem = memory;
+      while ( true ) {
+        int bytecode = code[ip++]; // fetch
+        executed++;
+        int d,a,b;
+        switch ( bytecode ) {
+          case RVMParser.LOADI :
+            d = code[ip++];
+            mem[fp+d] = code[ip++];
+            break;
+          case RVMParser.MOVE :
+            d = code[ip++];
+            mem[fp+d] = mem[fp+code[ip++]];
+            break;
+          case RVMParser.LOADFP :
+            mem[fp+code[ip++]] = fp;
+            break;
+          case RVMParser.ADD :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] + mem[fp+b];
+            break;
+          case RVMParser.SUB :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] - mem[fp+b];
+            break;
+          case RVMParser.MULT :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] * mem[fp+b];
+            break;
+          case RVMParser.DIV :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] / mem[fp+b];
+            break;
+          case RVMParser.ADDI :
+            d = code[ip++]; a = code[ip++];
+            mem[fp+d] = mem[fp+a] + code[ip++];
+            break;
+          case RVMParser.EQ :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] == mem[fp+b] ? 1 : 0;
+            break;
+          case RVMParser.LE :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] <= mem[fp+b] ? 1 : 0;
+            break;
+          case RVMParser.LT :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] < mem[fp+b] ? 1 : 0;
+            break;
+          case RVMParser.AND :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] != 0 && mem[fp+b] != 0 ? 1 : 0;
+            break;
+          case RVMParser.OR :
+            d = code[ip++]; a = code[ip++]; b = code[ip++];
+            mem[fp+d] = mem[fp+a] != 0 || mem[fp+b] != 0 ? 1 : 0;
+            break;
+          case RVMParser.NOT :
+            d = code[ip++];
+            mem[fp+d] = mem[fp+code[ip++]] == 0 ? 1 : 0;
+            break;
+          case RVMParser.LOADW : // static chain, fields and dispatch tables
+            d = code[ip++]; a = code[ip++];
+            mem[fp+d] = mem[mem[fp+a] + code[ip++]];
+            break;
+          case RVMParser.LOADGLOBAL : // e.g. dispatch pointers from methods, whose Access Link is the object
+            d = code[ip++];
+            mem[fp+d] = mem[globals+code[ip++]];
+            break;
+          case RVMParser.BRANCH :
+            ip = code[ip];
+            break;
+          case RVMParser.BRANCHEQ :
+            a = code[ip++]; b = code[ip++];
+            ip = mem[fp+a] == mem[fp+b] ? code[ip] : ip+1;
+            break;
+          case RVMParser.BRANCHLESSEQ :
+            a = code[ip++]; b = code[ip++];
+            ip = mem[fp+a] <= mem[fp+b] ? code[ip] : ip+1;
+            break;
+          case RVMParser.BRANCHNZ :
+            a = code[ip++];
+            ip = mem[fp+a] != 0 ? code[ip] : ip+1;
+            break;
+          case RVMParser.NEW : // n fields in registers b.. (the first at $hp), dispatch pointer in p
+            d = code[ip++]; b = code[ip++]; a = code[ip++];
+            if (hp+a+1 > fp-GUARD) throw exhausted();
+            System.arraycopy(mem, fp+b, mem, hp, a);
+            mem[hp+a] = mem[fp+code[ip++]];
+            mem[fp+d] = hp+a; // object address (points to dispatch pointer)
+            hp += a+1;
+            break;
+          case RVMParser.ALLOC : // n words in registers b.. (the first at $hp)
+            d = code[ip++]; b = code[ip++]; a = code[ip++];
+            if (hp+a > fp-GUARD) throw exhausted();
+            System.arraycopy(mem, fp+b, mem, hp, a);
+            mem[fp+d] = hp;
+            hp += a;
+            break;
+          case RVMParser.CALL : // address at offset n of the frame (Access Link) in register c
+            b = fp + code[ip++];
+            if (b-GUARD < hp) throw exhausted();
+            a = mem[mem[b] + code[ip++]];
+            mem[b-1] = ip;
+            mem[b-2] = fp;
+            fp = b;
+            ip = a;
+            break;
+          case RVMParser.CALLR : // address in register t
+            b = fp + code[ip++];
+            if (b-GUARD < hp) throw exhausted();
+            a = mem[fp+code[ip++]];
+            mem[b-1] = ip;
+            mem[b-2] = fp;
+            fp = b;
+            ip = a;
+            break;
+          case RVMParser.RET :
+            mem[fp] = mem[fp+code[ip]];
+            ip = mem[fp-1];
+            fp = mem[fp-2];
+            break;
+          case RVMParser.PRINT :
+            output.print(mem[fp+code[ip++]]);
+            break;
+          case RVMParser.HALT :
+            return;
+        }
+      }
+    }
+
+}
@@ -9,10 +9,19 @@ public int lexicalErrors=0;
 }
    
 @parser::members { 
-public int[] code = new int[ExecuteVM.CODESIZE];    
+public int[] code = new int[ExecuteVM.CODESIZE]; // grows as needed
 private int i = 0;
 private Map<String,Integer> labelDef = new HashMap<>();
 private Map<Integer,String> labelRef = new HashMap<>();
+private Map<Integer,Integer> lines = new TreeMap<>();
+
+public Set<Integer> labelRefs() { return labelRef.keySet(); } // code addresses holding a label
+public Map<String,Integer> labels() { return labelDef; }      // address of every label
+public Map<Integer,Integer> lines() { return lines; }         // source line of every instruction address
+
+private void ensure(int words) { // room for the next instruction
+	if (i+words > code.length) code = Arrays.copyOf(code, Math.max(2*code.length, i+words));
+}
 }
 
 /*------------------------------------------------------------------
@@ -23,7 +32,7 @@ assembly: instruction* EOF 	{ for (Integer j: labelRef.keySet())
 								code[j]=labelDef.get(labelRef.get(j)); 
 							} ;
 
-instruction : 
+instruction @init { ensure(3); lines.put(i, $start.getLine()); } : 
         PUSH n=INTEGER   {code[i++] = PUSH; 
 			              code[i++] = Integer.parseInt($n.text);}
 	  | PUSH l=LABEL    {code[i++] = PUSH; 
@@ -54,6 +63,45 @@ instruction :
 	  | STOREHP         {code[i++] = STOREHP;}   //
 	  | PRINT           {code[i++] = PRINT;}
 	  | HALT            {code[i++] = HALT;}
+	  | CHECKPOINT      {code[i++] = CHECKPOINT;} // saves the state of the VM (see Checkpoint)
+	  // superinstructions (see Superinstruction for the runs they replace) and addressing modes
+	  | LOADWOFF n=INTEGER {code[i++] = LOADWOFF;
+			              code[i++] = Integer.parseInt($n.text);}
+	  | LOADFPW n=INTEGER  {code[i++] = LOADFPW;
+			              code[i++] = Integer.parseInt($n.text);}
+	  | LOADGLOBAL n=INTEGER {code[i++] = LOADGLOBAL; // word n of the frame of the main program
+			              code[i++] = Integer.parseInt($n.text);}
+	  | ADDI n=INTEGER     {code[i++] = ADDI;
+			              code[i++] = Integer.parseInt($n.text);}
+	  | STOREFPW n=INTEGER {code[i++] = STOREFPW;
+			              code[i++] = Integer.parseInt($n.text);}
+	  | DUP             {code[i++] = DUP;}
+	  | STOREHPINC      {code[i++] = STOREHPINC;}
+	  // comparisons and boolean operators (push 1 for true, 0 for false)
+	  | EQ              {code[i++] = EQ;}
+	  | LE              {code[i++] = LE;}
+	  | LT              {code[i++] = LT;}
+	  | AND             {code[i++] = AND;}
+	  | OR              {code[i++] = OR;}
+	  | NOT             {code[i++] = NOT;}
+	  // heap allocation
+	  | NEW n=INTEGER   {code[i++] = NEW;
+			              code[i++] = Integer.parseInt($n.text);}
+	  | ALLOC n=INTEGER {code[i++] = ALLOC;
+			              code[i++] = Integer.parseInt($n.text);}
+	  // reference counts (see ReferenceCounter)
+	  | INCREF          {code[i++] = INCREF;}
+	  | DECREF n=INTEGER {code[i++] = DECREF;
+			              code[i++] = Integer.parseInt($n.text);}
+	  // frame management
+	  | CALL n=INTEGER  {code[i++] = CALL;
+			              code[i++] = Integer.parseInt($n.text);}
+	  | CALLMETHOD n=INTEGER {code[i++] = CALLMETHOD; // word n of the dispatch table of the object on top
+			              code[i++] = Integer.parseInt($n.text);}
+	  | ENTER           {code[i++] = ENTER;}
+	  | RET d=INTEGER p=INTEGER {code[i++] = RET;
+			              code[i++] = Integer.parseInt($d.text);
+			              code[i++] = Integer.parseInt($p.text);}
 	  ;
 	  
 /*------------------------------------------------------------------
@@ -83,6 +131,28 @@ LOADHP	 : 'lhp' ;
 STOREHP	 : 'shp' ;	
 PRINT	 : 'print' ;	
 HALT	 : 'halt' ;	
+CHECKPOINT : 'checkpoint' ;
+LOADWOFF : 'lwo' ;	
+LOADFPW	 : 'lwfp' ;	
+LOADGLOBAL : 'lwg' ;	
+STOREFPW : 'swfp' ;	
+ADDI	 : 'addi' ;	
+DUP	 : 'dup' ;	
+STOREHPINC : 'swhp' ;	
+EQ	 : 'eq' ;	
+LE	 : 'le' ;	
+LT	 : 'lt' ;	
+AND	 : 'and' ;	
+OR	 : 'or' ;	
+NOT	 : 'not' ;	
+NEW	 : 'new' ;	
+ALLOC	 : 'alloc' ;	
+INCREF	 : 'incref' ;	
+DECREF	 : 'decref' ;	
+CALL	 : 'call' ;	
+ENTER	 : 'enter' ;	
+RET	 : 'ret' ;	
+CALLMETHOD : 'callm' ;	
  
 COL	 : ':' ;
 LABEL	 : ('a'..'z'|'A'..'Z')('a'..'z' | 'A'..'Z' | '0'..'9')* ;
@@ -0,0 +1,153 @@
+package svm;
+
+import java.util.concurrent.*;
+
+/**
+ * Preemptive round-robin scheduler of many ExecuteVMs on a fixed pool of carrier
+ * threads. A submitted VM runs for a slice of instructions (see ExecuteVM.slice),
+ * then goes back to the end of the queue of the pool with its whole state in its
+ * registers and memory, so a program that never halts only ever takes its share
+ * of the carriers.
+ * Every program has a Quota of instructions, heap and stack. The instruction
+ * quota is exact: the last slice stops on it. Heap and stack are checked between
+ * slices, against the heap in use (up to $hp) and the deepest stack so far;
+ * within a slice the stack guard and heap limit of the VM still apply, and stop
+ * the program. A program over its quota is killed, or parked until resume gives
+ * it a new quota.
+ */
+public final class Scheduler implements AutoCloseable {
+
+    public static final int SLICE = 10000; // default instructions per slice
+
+    // what happens to a program over its quota
+    public enum Action { KILL, PARK }
+
+    // READY: waiting for a carrier or running, the others until resume (PARKED) or for good
+    public enum State { READY, PARKED, HALTED, FAILED, KILLED }
+
+    public static final class Quota {
+      public static final Quota NONE = new Quota(Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Action.KILL);
+
+      public final long instructions;
+      public final int heapWords;  // heap in use
+      public final int stackWords; // deepest stack
+      public final Action action;
+
+      public Quota(long instructions, int heapWords, int stackWords, Action action) {
+        this.instructions = instructions;
+        this.heapWords = heapWords;
+        this.stackWords = stackWords;
+        this.action = action;
+      }
+
+      // the quota the VM is over, null if none
+      String exceeded(ExecuteVM vm) {
+        if (vm.executed() >= instructions) return "instructions";
+        if (vm.heapWords() > heapWords) return "heap";
+        if (vm.stackDepth() > stackWords) return "stack";
+        return null;
+      }
+    }
+
+    // a program in the scheduler
+    public final class Task implements Runnable {
+      public final ExecuteVM vm;
+      private volatile Quota quota;
+      private volatile State state = State.READY;
+      private volatile String exceeded;
+      private volatile Throwable error;
+      private final CompletableFuture<Task> done = new CompletableFuture<>();
+
+      Task(ExecuteVM vm, Quota quota) {
+        this.vm = vm;
+        this.quota = quota;
+      }
+
+      public State state() {
+        return state;
+      }
+
+      // the quota that killed or parked the program, null if none
+      public String exceeded() {
+        return exceeded;
+      }
+
+      // the exception that stopped the program (FAILED), null if none
+      public Throwable error() {
+        return error;
+      }
+
+      // completed when the program halts, fails or is killed, not when it is parked
+      public CompletableFuture<Task> done() {
+        return done;
+      }
+
+      @Override
+      public void run() {
+        Quota quota = this.quota;
+        boolean running;
+        try {
+          running = vm.slice((int) Math.max(0, Math.min(slice, quota.instructions - vm.executed())));
+        } catch (RuntimeException | StackOverflowError e) {
+          error = e;
+          stop(State.FAILED);
+          return;
+        }
+        if (!running) {
+          stop(State.HALTED);
+          return;
+        }
+        exceeded = quota.exceeded(vm);
+        if (exceeded == null) {
+          try {
+            executor.execute(this);
+          } catch (RejectedExecutionException e) { // closed
+          }
+          return;
+        }
+        vm.output.flush(); // slice flushes only when the program halts
+        if (quota.action == Action.KILL) stop(State.KILLED);
+        else state = State.PARKED;
+      }
+
+      private void stop(State state) {
+        this.state = state;
+        done.complete(this);
+      }
+    }
+
+    private final ExecutorService executor;
+    private final int slice;
+
+    public Scheduler(int carriers) {
+      this(carriers, SLICE);
+    }
+
+    public Scheduler(int carriers, int slice) {
+      executor = Executors.newFixedThreadPool(carriers);
+      this.slice = slice;
+    }
+
+    // the VM runs from where it stopped, interleaved with the others
+    public Task submit(ExecuteVM vm, Quota quota) {
+      Task task = new Task(vm, quota);
+      executor.execute(task);
+      return task;
+    }
+
+    // a parked program runs again, with a new quota
+    public void resume(Task task, Quota quota) {
+      if (task.state != State.PARKED) throw new IllegalStateException("Task is "+task.state);
+      task.quota = quota;
+      task.exceeded = null;
+      task.state = State.READY;
+      executor.execute(task);
+    }
+
+    // the programs still running are dropped where they are
+    @Override
+    public void close() {
+      executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,58 @@
+package svm;
+
+import java.util.*;
+
+/**
+ * Superinstructions of the SVM and the instruction runs they replace.
+ * In a run "k" stands for any integer operand of push, which becomes the operand
+ * of the superinstruction, while a number requires exactly that operand.
+ * The runs were picked from the Profiler ranking on the sample programs;
+ * select() redoes the choice on the profile of another corpus.
+ */
+public enum Superinstruction {
+
+    STOREHPINC(SVMParser.STOREHPINC, "lhp sw lhp push 1 add shp"), // store at hp and bump it
+    LOADFPW(SVMParser.LOADFPW, "lfp push k add lw"),                // load word at fp+k
+    LOADWOFF(SVMParser.LOADWOFF, "push k add lw"),                  // load word at top+k
+    DUP(SVMParser.DUP, "stm ltm ltm"),                               // duplicate top (and copy it to tm)
+    ADDI(SVMParser.ADDI, "push k add");                              // add k to top
+
+    final int opcode;
+    final int[] ops;          // opcodes of the run
+    final Integer[] operands; // required push operand of each instruction of the run, null for "k"
+    private final String run;
+
+    Superinstruction(int opcode, String pattern) {
+      this.opcode = opcode;
+      List<Integer> ops = new ArrayList<>();
+      List<Integer> operands = new ArrayList<>();
+      StringBuilder run = new StringBuilder();
+      for (String token : pattern.split(" ")) {
+        if (token.equals("k")) continue;
+        if (Character.isDigit(token.charAt(0))) {
+          operands.set(operands.size()-1, Integer.parseInt(token));
+          continue;
+        }
+        ops.add(InstructionSet.opcode(token));
+        operands.add(null);
+        run.append(run.length() == 0 ? "" : " ").append(token);
+      }
+      this.ops = ops.stream().mapToInt(Integer::intValue).toArray();
+      this.operands = operands.toArray(new Integer[0]);
+      this.run = run.toString();
+    }
+
+    // the run in the form used by Profiler, e.g. "lfp push add lw"
+    public String run() {
+      return run;
+    }
+
+    // the superinstructions whose run saves at least minShare of the dispatches in the profile
+    public static EnumSet<Superinstruction> select(Profiler profile, double minShare) {
+      EnumSet<Superinstruction> selected = EnumSet.noneOf(Superinstruction.class);
+      for (Superinstruction s : values())
+        if (profile.share(s.run) >= minShare) selected.add(s);
+      return selected;
+    }
+
+}
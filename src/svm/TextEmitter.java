@@ -0,0 +1,57 @@
+package svm;
+
+/**
+ * Emitter rendering the assembly text, one instruction or label per line, with an
+ * empty line in front of every appended block (e.g. the code of a function).
+ */
+public class TextEmitter implements Emitter {
+
+    private final StringBuilder text = new StringBuilder();
+
+    @Override
+    public void op(int opcode) {
+      line(InstructionSet.mnemonic(opcode));
+    }
+
+    @Override
+    public void op(int opcode, int operand) {
+      line(InstructionSet.mnemonic(opcode)+" "+operand);
+    }
+
+    @Override
+    public void op(int opcode, int first, int second) {
+      line(InstructionSet.mnemonic(opcode)+" "+first+" "+second);
+    }
+
+    @Override
+    public void op(int opcode, String label) {
+      line(InstructionSet.mnemonic(opcode)+" "+label);
+    }
+
+    @Override
+    public void label(String label) {
+      line(label+":");
+    }
+
+    @Override
+    public Emitter block() {
+      return new TextEmitter();
+    }
+
+    @Override
+    public void append(Emitter block) {
+      line("");
+      line(block.toString());
+    }
+
+    private void line(String line) {
+      if (text.length() > 0) text.append('\n');
+      text.append(line);
+    }
+
+    @Override
+    public String toString() {
+      return text.toString();
+    }
+
+}
@@ -0,0 +1,63 @@
+package svm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * The text of console(), one decimal value per line, formatted straight into a
+ * byte buffer and written to the stream when the buffer is full and at flush, so
+ * that printing a value costs neither a String nor a synchronized write.
+ */
+public final class TextOutput extends Output {
+
+    private static final int SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[SIZE];
+    private final byte[] newline = System.lineSeparator().getBytes();
+    private int used = 0;
+
+    public TextOutput(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void print(int value) {
+      if (used + 11 + newline.length > SIZE) drain(); // sign and 10 digits at most
+      if (value < 0) buffer[used++] = '-';
+      else value = -value; // negative, so that Integer.MIN_VALUE has no special case
+      int end = used;
+      do {
+        buffer[end++] = (byte) ('0' - value % 10);
+        value /= 10;
+      } while (value != 0);
+      for (int i = used, j = end-1; i < j; i++, j--) { // digits were written lowest first
+        byte digit = buffer[i];
+        buffer[i] = buffer[j];
+        buffer[j] = digit;
+      }
+      used = end;
+      for (byte b : newline) buffer[used++] = b;
+    }
+
+    @Override
+    public void flush() {
+      drain();
+      try {
+        out.flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void drain() {
+      try {
+        out.write(buffer, 0, used);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      used = 0;
+    }
+
+}
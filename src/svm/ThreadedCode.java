@@ -0,0 +1,274 @@
+package svm;
+
+/**
+ * Closure-threaded form of an assembled SVM program.
+ * The int[] code is decoded once: every instruction start gets a handler with
+ * its operand, its fall-through address and its branch target already bound in,
+ * so execution no longer goes through the opcode switch of ExecuteVM.cpu().
+ * A handler runs one instruction on the VM state and returns the address of the
+ * next one to run (-1 for halt). Handlers are indexed by code address, so jumps
+ * to addresses computed at run time (js) need no translation.
+ */
+public class ThreadedCode {
+
+    @FunctionalInterface
+    interface Handler {
+      int run(ExecuteVM vm);
+    }
+
+    private final Handler[] handlers;
+
+    public ThreadedCode(int[] code) {
+      handlers = new Handler[code.length];
+      int i = 0;
+      while (i < code.length) i = decode(code, i);
+    }
+
+    // decodes the instruction starting at address i and returns the address of the next one
+    private int decode(int[] code, int i) {
+      final int next;
+      final int arg;
+      switch ( code[i] ) {
+        case SVMParser.PUSH:
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.memory.set(--vm.sp, arg); return next; };
+          return next;
+        case SVMParser.POP:
+          next = i+1;
+          handlers[i] = vm -> { vm.sp++; return next; };
+          return next;
+        case SVMParser.ADD :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) + v1); return next; };
+          return next;
+        case SVMParser.MULT :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) * v1); return next; };
+          return next;
+        case SVMParser.DIV :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) / v1); return next; };
+          return next;
+        case SVMParser.SUB :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) - v1); return next; };
+          return next;
+        case SVMParser.STOREW :
+          next = i+1;
+          handlers[i] = vm -> { int address = vm.memory.get(vm.sp++); vm.memory.set(address, vm.memory.get(vm.sp++)); return next; };
+          return next;
+        case SVMParser.LOADW :
+          next = i+1;
+          handlers[i] = vm -> { vm.memory.set(vm.sp, vm.memory.get(vm.memory.get(vm.sp))); return next; };
+          return next;
+        case SVMParser.BRANCH :
+          arg = code[i+1];
+          handlers[i] = vm -> arg;
+          return i+2;
+        case SVMParser.BRANCHEQ :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); int v2 = vm.memory.get(vm.sp++); return v2 == v1 ? arg : next; };
+          return next;
+        case SVMParser.BRANCHLESSEQ :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); int v2 = vm.memory.get(vm.sp++); return v2 <= v1 ? arg : next; };
+          return next;
+        case SVMParser.JS :
+          next = i+1;
+          handlers[i] = vm -> { vm.ra = next; return vm.memory.get(vm.sp++); };
+          return next;
+        case SVMParser.STORERA :
+          next = i+1;
+          handlers[i] = vm -> { vm.ra = vm.memory.get(vm.sp++); return next; };
+          return next;
+        case SVMParser.LOADRA :
+          next = i+1;
+          handlers[i] = vm -> { vm.memory.set(--vm.sp, vm.ra); return next; };
+          return next;
+        case SVMParser.STORETM :
+          next = i+1;
+          handlers[i] = vm -> { vm.tm = vm.memory.get(vm.sp++); return next; };
+          return next;
+        case SVMParser.LOADTM :
+          next = i+1;
+          handlers[i] = vm -> { vm.memory.set(--vm.sp, vm.tm); return next; };
+          return next;
+        case SVMParser.LOADFP :
+          next = i+1;
+          handlers[i] = vm -> { vm.memory.set(--vm.sp, vm.fp); return next; };
+          return next;
+        case SVMParser.STOREFP :
+          next = i+1;
+          handlers[i] = vm -> { vm.fp = vm.memory.get(vm.sp++); return next; };
+          return next;
+        case SVMParser.COPYFP :
+          next = i+1;
+          handlers[i] = vm -> { vm.fp = vm.sp; return next; };
+          return next;
+        case SVMParser.STOREHP :
+          next = i+1;
+          handlers[i] = vm -> { vm.hp = vm.memory.get(vm.sp++); return next; };
+          return next;
+        case SVMParser.LOADHP :
+          next = i+1;
+          handlers[i] = vm -> { vm.memory.set(--vm.sp, vm.hp); return next; };
+          return next;
+        case SVMParser.PRINT :
+          next = i+1;
+          handlers[i] = vm -> { vm.output.print(vm.memory.get(vm.sp)); return next; };
+          return next;
+        case SVMParser.HALT :
+          next = i+1;
+          handlers[i] = vm -> { vm.ip = next; return -1; };
+          return next;
+        case SVMParser.CHECKPOINT :
+          next = i+1;
+          handlers[i] = vm -> { vm.ip = next; vm.checkpoint(); return next; };
+          return next;
+        case SVMParser.LOADWOFF :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.memory.set(vm.sp, vm.memory.get(vm.memory.get(vm.sp) + arg)); return next; };
+          return next;
+        case SVMParser.LOADFPW :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.memory.set(--vm.sp, vm.memory.get(vm.fp + arg)); return next; };
+          return next;
+        case SVMParser.LOADGLOBAL :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.memory.set(--vm.sp, vm.memory.get(vm.stackSize + arg)); return next; };
+          return next;
+        case SVMParser.STOREFPW :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.memory.set(vm.fp + arg, vm.memory.get(vm.sp++)); return next; };
+          return next;
+        case SVMParser.ADDI :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.memory.set(vm.sp, vm.memory.get(vm.sp) + arg); return next; };
+          return next;
+        case SVMParser.DUP :
+          next = i+1;
+          handlers[i] = vm -> { vm.tm = vm.memory.get(vm.sp); vm.memory.set(--vm.sp, vm.tm); return next; };
+          return next;
+        case SVMParser.STOREHPINC :
+          next = i+1;
+          handlers[i] = vm -> { vm.memory.set(vm.hp++, vm.memory.get(vm.sp++)); return next; };
+          return next;
+        case SVMParser.EQ :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) == v1 ? 1 : 0); return next; };
+          return next;
+        case SVMParser.LE :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) <= v1 ? 1 : 0); return next; };
+          return next;
+        case SVMParser.LT :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) < v1 ? 1 : 0); return next; };
+          return next;
+        case SVMParser.AND :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) != 0 && v1 != 0 ? 1 : 0); return next; };
+          return next;
+        case SVMParser.OR :
+          next = i+1;
+          handlers[i] = vm -> { int v1 = vm.memory.get(vm.sp++); vm.memory.set(vm.sp, vm.memory.get(vm.sp) != 0 || v1 != 0 ? 1 : 0); return next; };
+          return next;
+        case SVMParser.NOT :
+          next = i+1;
+          handlers[i] = vm -> { vm.memory.set(vm.sp, vm.memory.get(vm.sp) == 0 ? 1 : 0); return next; };
+          return next;
+        case SVMParser.NEW :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.newObject(arg); return next; };
+          return next;
+        case SVMParser.ALLOC :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.allocate(arg); return next; };
+          return next;
+        case SVMParser.INCREF :
+          next = i+1;
+          handlers[i] = vm -> { vm.incref(vm.memory.get(vm.sp)); return next; };
+          return next;
+        case SVMParser.DECREF :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.decref(vm.memory.get(vm.sp+arg)); return next; };
+          return next;
+        case SVMParser.CALL :
+          arg = code[i+1];
+          next = i+2;
+          handlers[i] = vm -> { vm.ra = next; return vm.memory.get(vm.memory.get(vm.sp) + arg); };
+          return next;
+        case SVMParser.CALLMETHOD :
+          next = i+2;
+          handlers[i] = vm -> { vm.ra = next; return vm.method(i, vm.memory.get(vm.sp)); };
+          return next;
+        case SVMParser.ENTER :
+          next = i+1;
+          handlers[i] = vm -> {
+            if (vm.sp < vm.stackGuard) vm.stackOverflow();
+            vm.fp = vm.sp;
+            vm.memory.set(--vm.sp, vm.ra);
+            return next;
+          };
+          return next;
+        case SVMParser.RET :
+          final int locals = code[i+1], params = code[i+2];
+          handlers[i] = vm -> {
+            vm.tm = vm.memory.get(vm.sp);
+            vm.ra = vm.memory.get(vm.sp+1+locals);
+            vm.sp += 3+locals+params;
+            vm.fp = vm.memory.get(vm.sp);
+            vm.memory.set(vm.sp, vm.tm);
+            return vm.ra;
+          };
+          return i+3;
+        default: // unused code area: like cpu(), skip the word
+          next = i+1;
+          handlers[i] = vm -> next;
+          return next;
+      }
+    }
+
+    // wraps every handler so that it counts its executions in counts[address]
+    void countInto(long[] counts) {
+      for (int i = 0; i < handlers.length; i++) {
+        Handler h = handlers[i];
+        int address = i;
+        if (h != null) handlers[i] = vm -> { counts[address]++; return h.run(vm); };
+      }
+    }
+
+    void run(ExecuteVM vm) {
+      Handler[] h = handlers;
+      int ip = vm.ip;
+      while (ip >= 0) ip = h[ip].run(vm);
+    }
+
+    // runs at most budget instructions (see ExecuteVM.slice), false once the program halted
+    boolean run(ExecuteVM vm, int budget) {
+      Handler[] h = handlers;
+      int ip = vm.ip, n = 0, low = vm.deepest;
+      while (ip >= 0 && n < budget) {
+        ip = h[ip].run(vm);
+        n++;
+        if (vm.sp < low) low = vm.sp;
+      }
+      vm.executed += n;
+      vm.deepest = low;
+      if (ip < 0) return false; // $ip set by halt
+      vm.ip = ip;
+      return true;
+    }
+
+}
@@ -0,0 +1,575 @@
+package svm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Second tier of the TIERED engine: translates hot SVM functions to JVM bytecode.
+ * The interpreter hands every call (js, call and callm) and every ret to run();
+ * once a function address has been called threshold times, the code reachable
+ * from it up to its ret is translated to a hidden class implementing Compiled,
+ * which the JVM JIT then compiles to machine code.
+ * Inside a block the SVM stack is kept on the JVM operand stack ("virtual" slots),
+ * and spilled to memory at block boundaries and before the instructions that
+ * access the stack through memory; registers live in JVM locals and are written
+ * back to the ExecuteVM at calls and at ret. Compiled code does not call: at a
+ * call and at ret it returns to the loop of run(), which goes on with the compiled
+ * code of the callee or of the return address, or back to the interpreter, so the
+ * JVM stack does not grow with the SVM one and a deep recursion stops with the
+ * stack overflow of the VM. A compiled function is entered at its address or at
+ * the return address of one of its calls. Functions using halt, or whose stack
+ * depth cannot be tracked, stay interpreted.
+ * Compiled functions keep no state, so VMs running the same code on different
+ * threads can share a TieredCompiler (see BatchRunner): functions are compiled one
+ * at a time, a count lost between two VMs only delays a compilation, and the
+ * functions that cannot be compiled are marked in the table of compiled ones.
+ */
+class TieredCompiler {
+
+    static final int THRESHOLD = Integer.getInteger("svm.jit.threshold", 1000); // calls before compiling
+    private static final int MAX_REGION = 4000; // instructions per translated function
+    private static final String[] REGISTERS = {"sp", "fp", "hp", "ra", "tm"}; // kept in the locals SP..TM of run()
+
+    // runs from $ip (the entry or a return address) to the next call, with the callee in $ip and
+    // the return address in $ra (true), or to ret, with the return address in $ip (false)
+    interface Compiled {
+      boolean run(ExecuteVM vm);
+    }
+
+    private static final Compiled INTERPRETED = vm -> false; // marks the functions that cannot be compiled, never run
+
+    private final int[] code;
+    private final int threshold;
+    private final int[] counts;
+    private final AtomicReferenceArray<Compiled> compiled;
+
+    TieredCompiler(int[] code, int threshold) {
+      this.code = code;
+      this.threshold = threshold;
+      counts = new int[code.length];
+      compiled = new AtomicReferenceArray<>(code.length);
+    }
+
+    TieredCompiler(int[] code) {
+      this(code, THRESHOLD);
+    }
+
+    // called with $ip at the target of a call (call) or of a ret: runs compiled code for as long as
+    // there is some to go on with, and leaves $ip where the interpreter goes on
+    void run(ExecuteVM vm, boolean call) {
+      while (true) {
+        Compiled c = compiled.get(vm.ip);
+        if (c == null) {
+          if (!call || ++counts[vm.ip] < threshold) return;
+          c = compile(vm.ip);
+        }
+        if (c == INTERPRETED) return;
+        call = c.run(vm);
+      }
+    }
+
+    // the compiled function, also entered at the return addresses of its calls; INTERPRETED if the
+    // function is left to the interpreter
+    private synchronized Compiled compile(int entry) {
+      Compiled c = compiled.get(entry);
+      if (c != null) return c; // by another VM
+      try {
+        Translator t = new Translator(entry);
+        if (t.analyse()) {
+          byte[] bytes = t.translate();
+          MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+          c = (Compiled) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+          for (int r : t.returns) compiled.set(r, c);
+          compiled.set(entry, c);
+          return c;
+        }
+      } catch (Throwable e) {
+        if (Boolean.getBoolean("svm.jit.trace")) System.err.println("Cannot compile "+entry+": "+e);
+      }
+      compiled.set(entry, INTERPRETED);
+      return INTERPRETED;
+    }
+
+    private class Translator {
+
+      // JVM locals of run()
+      private static final int VM = 1, MEM = 2, SP = 3, FP = 4, HP = 5, RA = 6, TM = 7, T = 8, T2 = 9, S = 10;
+      private static final int UNKNOWN = Integer.MIN_VALUE; // depth after calls and sfp
+
+      private final int entry;
+      private final TreeMap<Integer,Integer> depth = new TreeMap<>(); // instruction -> fp - $sp before it, if known
+      private final Set<Integer> leaders = new HashSet<>();
+      private final Set<Integer> returns = new TreeSet<>(); // return addresses of the calls, where run() is entered too
+      private final Map<Integer,ClassWriter.Label> labels = new HashMap<>();
+      private ClassWriter.Code m;
+      private int v; // slots of the SVM stack currently on the JVM operand stack
+
+      Translator(int entry) {
+        this.entry = entry;
+      }
+
+      // finds the instructions of the function and the stack depth before each one
+      boolean analyse() {
+        Deque<Integer> work = new ArrayDeque<>();
+        depth.put(entry, UNKNOWN);
+        work.add(entry);
+        leaders.add(entry);
+        while (!work.isEmpty()) {
+          int i = work.poll();
+          int op = code[i], d = depth.get(i), next = i + InstructionSet.length(op);
+          switch (op) {
+            case SVMParser.HALT: case SVMParser.CHECKPOINT: return false;
+            case SVMParser.RET: continue;
+            case SVMParser.BRANCH: flow(code[i+1], d, work); leaders.add(code[i+1]); continue;
+            case SVMParser.BRANCHEQ:
+            case SVMParser.BRANCHLESSEQ:
+              flow(code[i+1], effect(op, i, d), work); leaders.add(code[i+1]); leaders.add(next);
+              break;
+            case SVMParser.JS: case SVMParser.CALL: case SVMParser.CALLMETHOD:
+              returns.add(next); leaders.add(next);
+              break;
+          }
+          if (next >= code.length || depth.size() > MAX_REGION || !flow(next, effect(op, i, d), work)) return false;
+        }
+        return true;
+      }
+
+      private boolean flow(int to, int d, Deque<Integer> work) {
+        if (to < 0 || to >= code.length) return false;
+        Integer old = depth.get(to);
+        if (old == null) { depth.put(to, d); work.add(to); }
+        else if (old != d && old != UNKNOWN) { depth.put(to, UNKNOWN); work.add(to); }
+        return true;
+      }
+
+      // stack depth after the instruction
+      private int effect(int op, int i, int d) {
+        switch (op) {
+          case SVMParser.ENTER: return 1;
+          case SVMParser.COPYFP: return 0;
+          case SVMParser.STOREFP: case SVMParser.JS: case SVMParser.CALL: case SVMParser.CALLMETHOD: return UNKNOWN;
+        }
+        if (d == UNKNOWN) return d;
+        switch (op) {
+          case SVMParser.PUSH: case SVMParser.LOADFP: case SVMParser.LOADRA: case SVMParser.LOADTM:
+          case SVMParser.LOADHP: case SVMParser.LOADFPW: case SVMParser.LOADGLOBAL: case SVMParser.DUP:
+            return d+1;
+          case SVMParser.POP: case SVMParser.STORERA: case SVMParser.STORETM: case SVMParser.STOREHP:
+          case SVMParser.STOREFPW: case SVMParser.STOREHPINC: case SVMParser.ADD: case SVMParser.SUB:
+          case SVMParser.MULT: case SVMParser.DIV: case SVMParser.EQ: case SVMParser.LE: case SVMParser.LT:
+          case SVMParser.AND: case SVMParser.OR:
+            return d-1;
+          case SVMParser.STOREW: case SVMParser.BRANCHEQ: case SVMParser.BRANCHLESSEQ: return d-2;
+          case SVMParser.NEW: return d-code[i+1];
+          case SVMParser.ALLOC: return d-code[i+1]+1;
+          default: return d; // lw, lwo, addi, not, print, b
+        }
+      }
+
+      byte[] translate() {
+        String name = "svm/TieredCompiler$Function"+entry;
+        ClassWriter cw = new ClassWriter(name, "java/lang/Object", "svm/TieredCompiler$Compiled");
+        ClassWriter.Code init = cw.method(ClassWriter.ACC_PUBLIC, "<init>", "()V");
+        init.local(ClassWriter.ALOAD, 0);
+        init.invoke(ClassWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.op(ClassWriter.RETURN);
+
+        m = cw.method(ClassWriter.ACC_PUBLIC, "run", "(Lsvm/ExecuteVM;)Z");
+        load();
+        if (!returns.isEmpty()) { // entered at a return address
+          m.local(ClassWriter.ALOAD, VM);
+          m.field(ClassWriter.GETFIELD, "svm/ExecuteVM", "ip", "I");
+          m.local(ClassWriter.ISTORE, T);
+          for (int r : returns) {
+            m.local(ClassWriter.ILOAD, T);
+            m.intConst(r);
+            m.jump(ClassWriter.IF_ICMPEQ, label(r));
+          }
+        }
+        int[] order = depth.keySet().stream().mapToInt(Integer::intValue).toArray();
+        if (order[0] != entry) m.jump(ClassWriter.GOTO, label(entry));
+        for (int k = 0; k < order.length; k++) { // a fall through to a non adjacent instruction needs a goto
+          int op = code[order[k]];
+          if (op != SVMParser.BRANCH && op != SVMParser.RET && !InstructionSet.isCall(op)
+              && (k+1 == order.length || order[k+1] != order[k] + InstructionSet.length(op)))
+            leaders.add(order[k] + InstructionSet.length(op));
+        }
+        for (int k = 0; k < order.length; k++) {
+          int i = order[k], op = code[i];
+          if (leaders.contains(i)) {
+            spill();
+            m.mark(label(i));
+          }
+          instruction(i, op);
+          int next = i + InstructionSet.length(op);
+          if (op != SVMParser.BRANCH && op != SVMParser.RET && !InstructionSet.isCall(op) && (k+1 == order.length || order[k+1] != next)) {
+            spill();
+            m.jump(ClassWriter.GOTO, label(next));
+          }
+        }
+        return cw.toByteArray();
+      }
+
+      private ClassWriter.Label label(int address) {
+        return labels.computeIfAbsent(address, a -> m.label());
+      }
+
+      private void instruction(int i, int op) {
+        int k = i+1 < code.length ? code[i+1] : 0;
+        switch (op) {
+          case SVMParser.PUSH: m.intConst(k); v++; break;
+          case SVMParser.POP:
+            if (v > 0) { m.op(ClassWriter.POP); v--; } else m.iinc(SP, 1);
+            break;
+          case SVMParser.ADD: arithmetic(ClassWriter.IADD); break;
+          case SVMParser.SUB: arithmetic(ClassWriter.ISUB); break;
+          case SVMParser.MULT: arithmetic(ClassWriter.IMUL); break;
+          case SVMParser.DIV: arithmetic(ClassWriter.IDIV); break;
+          case SVMParser.EQ: compare(ClassWriter.IF_ICMPEQ); break;
+          case SVMParser.LE: compare(ClassWriter.IF_ICMPLE); break;
+          case SVMParser.LT: compare(ClassWriter.IF_ICMPLT); break;
+          case SVMParser.AND: logic(ClassWriter.IFEQ, 0); break;
+          case SVMParser.OR: logic(ClassWriter.IFNE, 1); break;
+          case SVMParser.NOT: {
+            need(1);
+            ClassWriter.Label zero = m.label(), end = m.label();
+            m.jump(ClassWriter.IFEQ, zero);
+            m.intConst(0);
+            m.jump(ClassWriter.GOTO, end);
+            m.mark(zero);
+            m.intConst(1);
+            m.mark(end);
+            break;
+          }
+          case SVMParser.STOREW:
+            need(2);
+            m.local(ClassWriter.ISTORE, T);
+            m.local(ClassWriter.ISTORE, T2);
+            v -= 2;
+            spill();
+            store(() -> m.local(ClassWriter.ILOAD, T), T2);
+            break;
+          case SVMParser.LOADW: loadFrom(0); break;
+          case SVMParser.LOADWOFF: loadFrom(k); break;
+          case SVMParser.LOADFPW: { // the slot is read from memory unless it is on the JVM stack
+            int d = depth.get(i);
+            if (d == UNKNOWN || (k >= -d && k < -d+v)) spill();
+            m.local(ClassWriter.ALOAD, MEM);
+            m.local(ClassWriter.ILOAD, FP);
+            m.intConst(k);
+            m.op(ClassWriter.IADD);
+            get();
+            v++;
+            break;
+          }
+          case SVMParser.STOREFPW:
+            need(1);
+            m.local(ClassWriter.ISTORE, T);
+            v--;
+            spill();
+            store(() -> { m.local(ClassWriter.ILOAD, FP); m.intConst(k); m.op(ClassWriter.IADD); }, T);
+            break;
+          case SVMParser.ADDI: need(1); m.intConst(k); m.op(ClassWriter.IADD); break;
+          case SVMParser.DUP:
+            need(1);
+            m.op(ClassWriter.DUP);
+            m.local(ClassWriter.ISTORE, TM);
+            m.op(ClassWriter.DUP);
+            v++;
+            break;
+          case SVMParser.STOREHPINC:
+            need(1);
+            m.local(ClassWriter.ISTORE, T);
+            v--;
+            store(() -> m.local(ClassWriter.ILOAD, HP), T);
+            m.iinc(HP, 1);
+            break;
+          case SVMParser.BRANCH:
+            spill();
+            m.jump(ClassWriter.GOTO, label(k));
+            break;
+          case SVMParser.BRANCHEQ:
+          case SVMParser.BRANCHLESSEQ:
+            need(2);
+            m.local(ClassWriter.ISTORE, T);
+            m.local(ClassWriter.ISTORE, T2);
+            v -= 2;
+            spill();
+            m.local(ClassWriter.ILOAD, T2);
+            m.local(ClassWriter.ILOAD, T);
+            m.jump(op == SVMParser.BRANCHEQ ? ClassWriter.IF_ICMPEQ : ClassWriter.IF_ICMPLE, label(k));
+            break;
+          case SVMParser.JS:
+            need(1);
+            m.local(ClassWriter.ISTORE, T);
+            v--;
+            call(i+1);
+            break;
+          case SVMParser.CALL: // the Access Link stays on the stack, in memory
+            spill();
+            m.local(ClassWriter.ALOAD, MEM);
+            m.local(ClassWriter.ALOAD, MEM);
+            m.local(ClassWriter.ILOAD, SP);
+            get();
+            m.intConst(k);
+            m.op(ClassWriter.IADD);
+            get();
+            m.local(ClassWriter.ISTORE, T);
+            call(i+2);
+            break;
+          case SVMParser.CALLMETHOD: // through the inline cache of the site, the object stays in memory
+            spill();
+            m.local(ClassWriter.ALOAD, VM);
+            m.intConst(i);
+            m.local(ClassWriter.ALOAD, MEM);
+            m.local(ClassWriter.ILOAD, SP);
+            get();
+            m.invoke(ClassWriter.INVOKEVIRTUAL, "svm/ExecuteVM", "method", "(II)I");
+            m.local(ClassWriter.ISTORE, T);
+            call(i+2);
+            break;
+          case SVMParser.STORERA: pop(RA); break;
+          case SVMParser.LOADRA: push(RA); break;
+          case SVMParser.STORETM: pop(TM); break;
+          case SVMParser.LOADTM: push(TM); break;
+          case SVMParser.STOREFP: pop(FP); break;
+          case SVMParser.LOADFP: push(FP); break;
+          case SVMParser.STOREHP: pop(HP); break;
+          case SVMParser.LOADHP: push(HP); break;
+          case SVMParser.COPYFP:
+            spill();
+            m.local(ClassWriter.ILOAD, SP);
+            m.local(ClassWriter.ISTORE, FP);
+            break;
+          case SVMParser.PRINT:
+            need(1);
+            m.op(ClassWriter.DUP);
+            m.local(ClassWriter.ALOAD, VM);
+            m.field(ClassWriter.GETFIELD, "svm/ExecuteVM", "output", "Lsvm/Output;");
+            m.op(ClassWriter.SWAP);
+            m.invoke(ClassWriter.INVOKEVIRTUAL, "svm/Output", "print", "(I)V");
+            break;
+          case SVMParser.NEW:
+            allocate("newObject", k);
+            break;
+          case SVMParser.ALLOC:
+            allocate("allocate", k);
+            break;
+          case SVMParser.INCREF:
+          case SVMParser.DECREF: { // the value stays, in memory
+            spill();
+            m.local(ClassWriter.ALOAD, VM);
+            m.local(ClassWriter.ALOAD, MEM);
+            m.local(ClassWriter.ILOAD, SP);
+            if (op == SVMParser.DECREF) { m.intConst(k); m.op(ClassWriter.IADD); }
+            get();
+            m.invoke(ClassWriter.INVOKEVIRTUAL, "svm/ExecuteVM", op == SVMParser.INCREF ? "incref" : "decref", "(I)V");
+            break;
+          }
+          case SVMParser.ENTER: {
+            spill();
+            ClassWriter.Label ok = m.label();
+            m.local(ClassWriter.ILOAD, SP);
+            m.local(ClassWriter.ALOAD, VM);
+            m.field(ClassWriter.GETFIELD, "svm/ExecuteVM", "stackGuard", "I");
+            m.jump(ClassWriter.IF_ICMPGE, ok);
+            m.local(ClassWriter.ALOAD, VM);
+            m.invoke(ClassWriter.INVOKEVIRTUAL, "svm/ExecuteVM", "stackOverflow", "()V");
+            m.mark(ok);
+            m.local(ClassWriter.ILOAD, SP);
+            m.local(ClassWriter.ISTORE, FP);
+            push(RA);
+            break;
+          }
+          case SVMParser.LOADGLOBAL: // may be on the JVM stack while the main program pushes its declarations
+            spill();
+            m.local(ClassWriter.ALOAD, MEM);
+            m.local(ClassWriter.ALOAD, VM);
+            m.field(ClassWriter.GETFIELD, "svm/ExecuteVM", "stackSize", "I");
+            m.intConst(k);
+            m.op(ClassWriter.IADD);
+            get();
+            v++;
+            break;
+          case SVMParser.RET: { // like ExecuteVM: result, locals, $ra, Access Link, parameters, Control Link
+            need(1);
+            m.local(ClassWriter.ISTORE, TM);
+            v--;
+            spill();
+            m.iinc(SP, k);
+            m.local(ClassWriter.ALOAD, MEM);
+            m.local(ClassWriter.ILOAD, SP);
+            get();
+            m.local(ClassWriter.ISTORE, RA);
+            m.iinc(SP, 2+code[i+2]);
+            m.local(ClassWriter.ALOAD, MEM);
+            m.local(ClassWriter.ILOAD, SP);
+            get();
+            m.local(ClassWriter.ISTORE, FP);
+            store(() -> m.local(ClassWriter.ILOAD, SP), TM);
+            save();
+            m.local(ClassWriter.ALOAD, VM);
+            m.local(ClassWriter.ILOAD, RA);
+            m.field(ClassWriter.PUTFIELD, "svm/ExecuteVM", "ip", "I");
+            m.intConst(0);
+            m.op(ClassWriter.IRETURN);
+            break;
+          }
+          default:
+            throw new IllegalStateException("Unexpected opcode "+op);
+        }
+      }
+
+      private void arithmetic(int opcode) {
+        need(2);
+        m.op(opcode);
+        v--;
+      }
+
+      private void compare(int opcode) {
+        need(2);
+        ClassWriter.Label yes = m.label(), end = m.label();
+        m.jump(opcode, yes);
+        m.intConst(0);
+        m.jump(ClassWriter.GOTO, end);
+        m.mark(yes);
+        m.intConst(1);
+        m.mark(end);
+        v--;
+      }
+
+      // and (IFEQ, 0) and or (IFNE, 1): result is shortcut when an operand satisfies the test
+      private void logic(int opcode, int shortcut) {
+        need(2);
+        ClassWriter.Label cut = m.label(), end = m.label();
+        m.local(ClassWriter.ISTORE, T);
+        m.jump(opcode, cut);
+        m.local(ClassWriter.ILOAD, T);
+        m.jump(opcode, cut);
+        m.intConst(1-shortcut);
+        m.jump(ClassWriter.GOTO, end);
+        m.mark(cut);
+        m.intConst(shortcut);
+        m.mark(end);
+        v--;
+      }
+
+      private void push(int register) {
+        m.local(ClassWriter.ILOAD, register);
+        v++;
+      }
+
+      private void pop(int register) {
+        need(1);
+        m.local(ClassWriter.ISTORE, register);
+        v--;
+      }
+
+      // lw and lwo: the address may point into the stack, so memory must be up to date
+      private void loadFrom(int offset) {
+        need(1);
+        m.local(ClassWriter.ISTORE, T);
+        v--;
+        spill();
+        m.local(ClassWriter.ALOAD, MEM);
+        m.local(ClassWriter.ILOAD, T);
+        if (offset != 0) { m.intConst(offset); m.op(ClassWriter.IADD); }
+        get();
+        v++;
+      }
+
+      // memory[address] = local value
+      private void store(Runnable address, int value) {
+        m.local(ClassWriter.ALOAD, MEM);
+        address.run();
+        m.local(ClassWriter.ILOAD, value);
+        set();
+      }
+
+      // Memory.get and Memory.set on MEM and the address (and value) pushed after it
+      private void get() {
+        m.invoke(ClassWriter.INVOKEVIRTUAL, "svm/Memory", "get", "(I)I");
+      }
+
+      private void set() {
+        m.invoke(ClassWriter.INVOKEVIRTUAL, "svm/Memory", "set", "(II)V");
+      }
+
+      // new and alloc go through the ExecuteVM, which may collect the heap: the result is left in memory
+      private void allocate(String method, int words) {
+        spill();
+        save();
+        m.local(ClassWriter.ALOAD, VM);
+        m.intConst(words);
+        m.invoke(ClassWriter.INVOKEVIRTUAL, "svm/ExecuteVM", method, "(I)V");
+        load();
+      }
+
+      // calls the function whose address is in local T: back to run() with $ra at returnAddress,
+      // where the function is entered again when the callee returns
+      private void call(int returnAddress) {
+        spill();
+        m.intConst(returnAddress);
+        m.local(ClassWriter.ISTORE, RA);
+        save();
+        m.local(ClassWriter.ALOAD, VM);
+        m.local(ClassWriter.ILOAD, T);
+        m.field(ClassWriter.PUTFIELD, "svm/ExecuteVM", "ip", "I");
+        m.intConst(1);
+        m.op(ClassWriter.IRETURN);
+      }
+
+      // writes the virtual slots to memory below $sp
+      private void spill() {
+        for (int j = v; j >= 1; j--) { // the top of the JVM stack goes at $sp-v
+          m.local(ClassWriter.ISTORE, S);
+          m.local(ClassWriter.ALOAD, MEM);
+          m.local(ClassWriter.ILOAD, SP);
+          m.intConst(j);
+          m.op(ClassWriter.ISUB);
+          m.local(ClassWriter.ILOAD, S);
+          set();
+        }
+        if (v > 0) m.iinc(SP, -v);
+        v = 0;
+      }
+
+      // makes the top slots virtual, reading them from memory if needed
+      private void need(int slots) {
+        if (v >= slots) return;
+        spill();
+        for (int j = slots-1; j >= 0; j--) {
+          m.local(ClassWriter.ALOAD, MEM);
+          m.local(ClassWriter.ILOAD, SP);
+          if (j > 0) { m.intConst(j); m.op(ClassWriter.IADD); }
+          get();
+        }
+        m.iinc(SP, slots);
+        v = slots;
+      }
+
+      // registers (and memory, which grows with the heap) from the ExecuteVM to the locals
+      private void load() {
+        m.local(ClassWriter.ALOAD, VM);
+        m.field(ClassWriter.GETFIELD, "svm/ExecuteVM", "memory", "Lsvm/Memory;");
+        m.local(ClassWriter.ASTORE, MEM);
+        for (int r = 0; r < REGISTERS.length; r++) {
+          m.local(ClassWriter.ALOAD, VM);
+          m.field(ClassWriter.GETFIELD, "svm/ExecuteVM", REGISTERS[r], "I");
+          m.local(ClassWriter.ISTORE, SP+r);
+        }
+      }
+
+      // registers from the locals to the ExecuteVM
+      private void save() {
+        for (int r = 0; r < REGISTERS.length; r++) {
+          m.local(ClassWriter.ALOAD, VM);
+          m.local(ClassWriter.ILOAD, SP+r);
+          m.field(ClassWriter.PUTFIELD, "svm/ExecuteVM", REGISTERS[r], "I");
+        }
+      }
+    }
+
+}
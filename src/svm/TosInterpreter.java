@@ -0,0 +1,254 @@
+package svm;
+
+/**
+ * Variant of the ExecuteVM.cpu() fetch loop that caches the top of the stack.
+ * Up to two stack slots live in the local variables t0 (top) and t1 (second),
+ * n counts how many of them are currently cached and the rest of the stack is
+ * in memory below sp. Arithmetic and comparisons work on the cached slots only;
+ * they are spilled to memory just before an instruction that reads or writes
+ * the stack through memory (lw, sw, cfp) or when a third slot is pushed.
+ */
+class TosInterpreter {
+
+    static void run(ExecuteVM vm, int[] code) {
+      Memory mem = vm.memory;
+      int ip = vm.ip, sp = vm.sp, fp = vm.fp, hp = vm.hp, ra = vm.ra, tm = vm.tm;
+      int t0 = 0, t1 = 0, n = 0;
+      while ( true ) {
+        int bytecode = code[ip++]; // fetch
+        int v1,v2;
+        int address;
+        switch ( bytecode ) {
+          case SVMParser.PUSH:
+            v1 = code[ip++];
+            if (n == 2) mem.set(--sp, t1); else n++;
+            t1 = t0; t0 = v1;
+            break;
+          case SVMParser.POP:
+            if (n == 0) sp++; else { t0 = t1; n--; }
+            break;
+          case SVMParser.ADD :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 + v1; n = 1;
+            break;
+          case SVMParser.MULT :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 * v1; n = 1;
+            break;
+          case SVMParser.DIV :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 / v1; n = 1;
+            break;
+          case SVMParser.SUB :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 - v1; n = 1;
+            break;
+          case SVMParser.STOREW : // both operands leave the cache, so memory is up to date
+            address = (n > 0) ? t0 : mem.get(sp++);
+            v1 = (n > 1) ? t1 : mem.get(sp++);
+            n = 0;
+            mem.set(address, v1);
+            break;
+          case SVMParser.LOADW : // the address may refer to a cached slot: spill it first
+            if (n == 0) address = mem.get(sp++);
+            else {
+              address = t0;
+              if (n == 2) mem.set(--sp, t1);
+            }
+            t0 = mem.get(address); n = 1;
+            break;
+          case SVMParser.BRANCH :
+            ip = code[ip];
+            break;
+          case SVMParser.BRANCHEQ :
+            address = code[ip++];
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            n = 0;
+            if (v2 == v1) ip = address;
+            break;
+          case SVMParser.BRANCHLESSEQ :
+            address = code[ip++];
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            n = 0;
+            if (v2 <= v1) ip = address;
+            break;
+          case SVMParser.JS :
+            if (n == 0) address = mem.get(sp++); else { address = t0; t0 = t1; n--; }
+            ra = ip;
+            ip = address;
+            break;
+          case SVMParser.STORERA :
+            if (n == 0) ra = mem.get(sp++); else { ra = t0; t0 = t1; n--; }
+            break;
+          case SVMParser.LOADRA :
+            if (n == 2) mem.set(--sp, t1); else n++;
+            t1 = t0; t0 = ra;
+            break;
+          case SVMParser.STORETM :
+            if (n == 0) tm = mem.get(sp++); else { tm = t0; t0 = t1; n--; }
+            break;
+          case SVMParser.LOADTM :
+            if (n == 2) mem.set(--sp, t1); else n++;
+            t1 = t0; t0 = tm;
+            break;
+          case SVMParser.LOADFP :
+            if (n == 2) mem.set(--sp, t1); else n++;
+            t1 = t0; t0 = fp;
+            break;
+          case SVMParser.STOREFP :
+            if (n == 0) fp = mem.get(sp++); else { fp = t0; t0 = t1; n--; }
+            break;
+          case SVMParser.COPYFP : // fp must see the whole stack in memory
+            if (n == 2) mem.set(--sp, t1);
+            if (n > 0) mem.set(--sp, t0);
+            n = 0;
+            fp = sp;
+            break;
+          case SVMParser.STOREHP :
+            if (n == 0) hp = mem.get(sp++); else { hp = t0; t0 = t1; n--; }
+            break;
+          case SVMParser.LOADHP :
+            if (n == 2) mem.set(--sp, t1); else n++;
+            t1 = t0; t0 = hp;
+            break;
+          case SVMParser.PRINT :
+            vm.output.print((n > 0) ? t0 : mem.get(sp));
+            break;
+          case SVMParser.LOADWOFF :
+            if (n == 0) address = mem.get(sp++);
+            else {
+              address = t0;
+              if (n == 2) mem.set(--sp, t1);
+            }
+            t0 = mem.get(address + code[ip++]); n = 1;
+            break;
+          case SVMParser.LOADFPW : // read the slot from the cache if it is still there
+            address = fp + code[ip++];
+            v1 = (address >= sp) ? mem.get(address) : (address == sp-1 && n == 2) ? t1 : t0;
+            if (n == 2) mem.set(--sp, t1); else n++;
+            t1 = t0; t0 = v1;
+            break;
+          case SVMParser.LOADGLOBAL : // cached while the main program pushes its declarations
+            address = vm.stackSize + code[ip++];
+            v1 = (address >= sp) ? mem.get(address) : (address == sp-1 && n == 2) ? t1 : t0;
+            if (n == 2) mem.set(--sp, t1); else n++;
+            t1 = t0; t0 = v1;
+            break;
+          case SVMParser.STOREFPW : // the slot may be cached: spill what is left first
+            if (n == 0) v1 = mem.get(sp++); else { v1 = t0; t0 = t1; n--; }
+            if (n > 0) mem.set(--sp, t0);
+            n = 0;
+            mem.set(fp + code[ip++], v1);
+            break;
+          case SVMParser.ADDI :
+            if (n == 0) { t0 = mem.get(sp++); n = 1; }
+            t0 += code[ip++];
+            break;
+          case SVMParser.DUP :
+            if (n == 0) { t0 = mem.get(sp++); n = 1; }
+            tm = t0;
+            if (n == 2) mem.set(--sp, t1); else n++;
+            t1 = t0;
+            break;
+          case SVMParser.STOREHPINC :
+            if (n == 0) v1 = mem.get(sp++); else { v1 = t0; t0 = t1; n--; }
+            mem.set(hp++, v1);
+            break;
+          case SVMParser.EQ :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 == v1 ? 1 : 0; n = 1;
+            break;
+          case SVMParser.LE :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 <= v1 ? 1 : 0; n = 1;
+            break;
+          case SVMParser.LT :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 < v1 ? 1 : 0; n = 1;
+            break;
+          case SVMParser.AND :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 != 0 && v1 != 0 ? 1 : 0; n = 1;
+            break;
+          case SVMParser.OR :
+            v1 = (n > 0) ? t0 : mem.get(sp++);
+            v2 = (n > 1) ? t1 : mem.get(sp++);
+            t0 = v2 != 0 || v1 != 0 ? 1 : 0; n = 1;
+            break;
+          case SVMParser.NOT :
+            if (n == 0) { t0 = mem.get(sp++); n = 1; }
+            t0 = t0 == 0 ? 1 : 0;
+            break;
+          case SVMParser.NEW : // the words are copied from memory and may be collected: spill all
+          case SVMParser.ALLOC :
+            if (n == 2) mem.set(--sp, t1);
+            if (n > 0) mem.set(--sp, t0);
+            vm.sp = sp; vm.fp = fp; vm.hp = hp; vm.ra = ra; vm.tm = tm;
+            if (bytecode == SVMParser.NEW) vm.newObject(code[ip++]); else vm.allocate(code[ip++]);
+            sp = vm.sp; hp = vm.hp;
+            mem = vm.memory; // the heap may have grown
+            t0 = mem.get(sp++); n = 1;
+            break;
+          case SVMParser.INCREF : // frees nothing: no need to sync
+            vm.incref(n > 0 ? t0 : mem.get(sp));
+            break;
+          case SVMParser.DECREF : // only the free lists change, the value stays
+            v2 = code[ip++];
+            vm.decref(v2 < n ? (v2 == 0 ? t0 : t1) : mem.get(sp+v2-n));
+            break;
+          case SVMParser.CALL : // the slot may be cached, like in lwfp
+            if (n == 0) { t0 = mem.get(sp++); n = 1; }
+            address = t0 + code[ip++];
+            ra = ip;
+            ip = (address >= sp) ? mem.get(address) : (address == sp-1 && n == 2) ? t1 : t0;
+            break;
+          case SVMParser.CALLMETHOD : // the object (Access Link) stays, cached like in call
+            if (n == 0) { t0 = mem.get(sp++); n = 1; }
+            ra = ip+1;
+            ip = vm.method(ip-1, t0);
+            break;
+          case SVMParser.ENTER :
+            if (sp-n < vm.stackGuard) vm.stackOverflow();
+            if (n == 2) mem.set(--sp, t1);
+            if (n > 0) mem.set(--sp, t0);
+            fp = sp;
+            t0 = ra; n = 1;
+            break;
+          case SVMParser.RET : // keep the result, spill the rest and drop the frame in memory
+            if (n == 0) v1 = mem.get(sp++); else { v1 = t0; t0 = t1; n--; }
+            if (n > 0) mem.set(--sp, t0);
+            sp += code[ip++];
+            ra = mem.get(sp);
+            sp += 2+code[ip++];
+            fp = mem.get(sp++);
+            tm = v1;
+            t0 = v1; n = 1;
+            ip = ra;
+            break;
+          case SVMParser.CHECKPOINT : // the whole stack must be in memory
+            if (n == 2) mem.set(--sp, t1);
+            if (n > 0) mem.set(--sp, t0);
+            n = 0;
+            vm.ip = ip; vm.sp = sp; vm.fp = fp; vm.hp = hp; vm.ra = ra; vm.tm = tm;
+            vm.checkpoint();
+            break;
+          case SVMParser.HALT :
+            if (n == 2) mem.set(--sp, t1);
+            if (n > 0) mem.set(--sp, t0);
+            vm.ip = ip; vm.sp = sp; vm.fp = fp; vm.hp = hp; vm.ra = ra; vm.tm = tm;
+            return;
+        }
+      }
+    }
+
+}
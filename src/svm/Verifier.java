@@ -0,0 +1,237 @@
+package svm;
+
+import java.util.*;
+
+/**
+ * Static check of the code before it runs, in the style of the JVM verifier.
+ * A linear sweep (as in Fusion) finds the instruction starts; branches, and the
+ * labels pushed as code addresses (labelRefs), must point to one of them.
+ * Then every function is followed along all its control flow edges, with the
+ * number of words above $sp at its entry: the depth must be the same on every
+ * edge reaching an instruction, no instruction may take more words than there
+ * are, and ret d p must find exactly $ra, d locals and the result.
+ * Functions start at address 0 (the main program, which has no frame), at every
+ * enter and at every pushed label. call and js take the words pushed since the
+ * Control Link, i.e. the last value pushed by lfp below the Access Link, and leave
+ * the result in its place: the layout of CodeGenerationASTVisitor.
+ * The targets of call, callm and js are loaded from memory at run time and are not
+ * checked, apart from the pushed labels: code verified without its labelRefs can
+ * still jump anywhere, so ExecuteVM runs it checked (see ExecuteVM.verify).
+ */
+public final class Verifier {
+
+    private static final int[] NONE = {};
+
+    private final int[] code;
+    private Set<Integer> labelRefs;
+    private final boolean[] start;
+    private final int[] depth;    // words above the $sp at the entry of the function, before each instruction; -1 if not reached
+    private final int[][] links;  // depths of the Control Links (values pushed by lfp) on the stack, before each instruction
+    private final int[] function; // entry of the function of each instruction
+    private final Map<Integer,Integer> maxStack = new TreeMap<>(); // function entry -> most words it has on the stack
+    private final Map<Integer,Integer> params = new HashMap<>();   // function entry -> parameters popped by its ret
+
+    private Verifier(int[] code) {
+      this.code = code;
+      start = new boolean[code.length];
+      depth = new int[code.length];
+      Arrays.fill(depth, -1);
+      links = new int[code.length][];
+      function = new int[code.length];
+    }
+
+    // code that pushes no labels
+    public static Verifier verify(int[] code) {
+      return verify(code, Set.of());
+    }
+
+    // labelRefs are the code addresses holding a label, as given by SVMParser or Fusion;
+    // throws IllegalArgumentException if the code does not pass
+    public static Verifier verify(int[] code, Set<Integer> labelRefs) {
+      Verifier v = new Verifier(code);
+      v.labelRefs = Collections.unmodifiableSet(new TreeSet<>(labelRefs));
+      v.sweep();
+      Set<Integer> entries = new TreeSet<>();
+      entries.add(0);
+      for (int i = 0; i < code.length; i++) if (v.start[i] && code[i] == SVMParser.ENTER) entries.add(i);
+      for (int j : labelRefs) { // branches are checked with the flow
+        if (j <= 0 || j >= code.length || !v.start[j-1] || code[j-1] != SVMParser.PUSH && !InstructionSet.isBranch(code[j-1]))
+          throw new IllegalArgumentException("Address "+j+" does not hold a label");
+        if (code[j-1] == SVMParser.PUSH) entries.add(v.target(j-1, code[j]));
+      }
+      for (int entry : entries) v.analyse(entry);
+      return v;
+    }
+
+    // whether this is the Verifier of the code
+    boolean verifies(int[] code) {
+      return this.code == code;
+    }
+
+    // the labelRefs the code was verified with
+    public Set<Integer> labelRefs() {
+      return labelRefs;
+    }
+
+    // most words the function starting at entry (0 for the main program) has on the stack
+    public int maxStack(int entry) {
+      return maxStack.getOrDefault(entry, 0);
+    }
+
+    // most words any function puts below the $sp of its enter, i.e. the stack a call needs
+    public int maxFrame() {
+      int max = 0;
+      for (Map.Entry<Integer,Integer> f : maxStack.entrySet()) if (f.getKey() != 0) max = Math.max(max, f.getValue());
+      return max;
+    }
+
+    // function entries, with the most words each one has on the stack
+    public Map<Integer,Integer> functions() {
+      return Collections.unmodifiableMap(maxStack);
+    }
+
+    // zeros are the unused code area after the last instruction (SVMParser) and are skipped
+    private void sweep() {
+      for (int i = 0; i < code.length; ) {
+        int op = code[i];
+        if (op == 0) { i++; continue; }
+        if (!InstructionSet.isInstruction(op)) fail(i, "invalid opcode "+op);
+        if (i + InstructionSet.length(op) > code.length) fail(i, InstructionSet.mnemonic(op)+" without its operands");
+        start[i] = true;
+        i += InstructionSet.length(op);
+      }
+    }
+
+    private int target(int i, int address) {
+      if (address < 0 || address >= code.length || !start[address]) fail(i, "target "+address+" is not an instruction");
+      return address;
+    }
+
+    private void analyse(int entry) {
+      if (depth[entry] >= 0) {
+        if (function[entry] != entry) fail(entry, "function inside the code of the function at "+function[entry]);
+        return;
+      }
+      Deque<Integer> work = new ArrayDeque<>();
+      int max = 0;
+      flow(entry, entry, entry, 0, NONE, work);
+      while (!work.isEmpty()) {
+        int i = work.pop();
+        int op = code[i], d = depth[i], next = i + InstructionSet.length(op);
+        int[] l = links[i];
+        max = Math.max(max, d);
+        switch (op) {
+          case SVMParser.HALT:
+            continue;
+          case SVMParser.RET:
+            if (entry == 0) fail(i, "ret outside a function");
+            if (code[i+1] < 0 || code[i+2] < 0) fail(i, "negative operand");
+            if (d != code[i+1] + 2) fail(i, "unbalanced stack: "+d+" words at ret "+code[i+1]+" "+code[i+2]);
+            Integer p = params.putIfAbsent(entry, code[i+2]);
+            if (p != null && p != code[i+2]) fail(i, "ret with "+code[i+2]+" parameters, another one has "+p);
+            continue;
+          case SVMParser.BRANCH:
+            flow(i, target(i, code[i+1]), entry, d, l, work);
+            continue;
+          case SVMParser.BRANCHEQ:
+          case SVMParser.BRANCHLESSEQ:
+            need(i, d, 2);
+            flow(i, target(i, code[i+1]), entry, d-2, below(l, d-2), work);
+            flow(i, next, entry, d-2, below(l, d-2), work);
+            continue;
+          case SVMParser.CALL:
+          case SVMParser.CALLMETHOD:
+          case SVMParser.JS: { // Control Link, arguments, Access Link (and the address for js)
+            int al = d - (op == SVMParser.JS ? 2 : 1);
+            need(i, d, d-al);
+            int cl = -1;
+            for (int k : l) if (k < al) cl = k;
+            if (cl < 0) fail(i, InstructionSet.mnemonic(op)+" without a Control Link");
+            flow(i, next, entry, cl+1, below(l, cl), work); // the result in place of the Control Link
+            continue;
+          }
+          case SVMParser.ENTER:
+            if (i != entry || d != 0) fail(i, "enter not at the start of a function");
+            break;
+          case SVMParser.LOADFP: {
+            int[] pushed = Arrays.copyOf(l, l.length+1);
+            pushed[l.length] = d;
+            flow(i, next, entry, d+1, pushed, work);
+            max = Math.max(max, d+1);
+            continue;
+          }
+        }
+        int pops = pops(op, i), after = d - pops + pushes(op, i);
+        need(i, d, pops);
+        if (op == SVMParser.NEW || op == SVMParser.ALLOC || op == SVMParser.DECREF)
+          if (code[i+1] < 0) fail(i, "negative operand");
+        max = Math.max(max, after);
+        flow(i, next, entry, after, below(l, d-pops), work);
+      }
+      maxStack.put(entry, max);
+    }
+
+    private void flow(int from, int to, int entry, int d, int[] l, Deque<Integer> work) {
+      if (to >= code.length || !start[to]) fail(from, "execution goes on past the code");
+      if (depth[to] < 0) {
+        depth[to] = d;
+        links[to] = l;
+        function[to] = entry;
+        work.push(to);
+      } else if (function[to] != entry) {
+        fail(to, "reached from the functions at "+function[to]+" and "+entry);
+      } else if (depth[to] != d) {
+        fail(to, "stack depth "+depth[to]+" and "+d+" on different paths");
+      } else if (!Arrays.equals(links[to], l)) {
+        fail(to, "Control Links at different depths on different paths");
+      }
+    }
+
+    private void need(int i, int d, int words) {
+      if (d < words) fail(i, "stack underflow: "+InstructionSet.mnemonic(code[i])+" takes "+words+" words, there are "+d);
+    }
+
+    // the links that are still on the stack once it is down to d words
+    private static int[] below(int[] l, int d) {
+      int n = l.length;
+      while (n > 0 && l[n-1] >= d) n--;
+      return n == l.length ? l : Arrays.copyOf(l, n);
+    }
+
+    // words the instruction takes from the stack; print, incref and decref only look at them
+    private int pops(int op, int i) {
+      switch (op) {
+        case SVMParser.POP: case SVMParser.LOADW: case SVMParser.STORERA: case SVMParser.STORETM:
+        case SVMParser.STOREFP: case SVMParser.STOREHP: case SVMParser.PRINT: case SVMParser.LOADWOFF:
+        case SVMParser.STOREFPW: case SVMParser.ADDI: case SVMParser.DUP: case SVMParser.STOREHPINC:
+        case SVMParser.NOT: case SVMParser.INCREF:
+          return 1;
+        case SVMParser.ADD: case SVMParser.SUB: case SVMParser.MULT: case SVMParser.DIV:
+        case SVMParser.STOREW: case SVMParser.EQ: case SVMParser.LE: case SVMParser.LT:
+        case SVMParser.AND: case SVMParser.OR:
+          return 2;
+        case SVMParser.NEW: return code[i+1]+1;
+        case SVMParser.ALLOC: return code[i+1];
+        case SVMParser.DECREF: return code[i+1]+1;
+        default: return 0; // push, lra, ltm, lhp, lwfp, lwg, cfp, checkpoint, enter
+      }
+    }
+
+    // words the instruction leaves on the stack in place of those it takes
+    private int pushes(int op, int i) {
+      switch (op) {
+        case SVMParser.POP: case SVMParser.STORERA: case SVMParser.STORETM: case SVMParser.STOREFP:
+        case SVMParser.STOREHP: case SVMParser.STOREFPW: case SVMParser.STOREHPINC: case SVMParser.STOREW:
+        case SVMParser.COPYFP: case SVMParser.CHECKPOINT:
+          return 0;
+        case SVMParser.DUP: return 2;
+        case SVMParser.DECREF: return code[i+1]+1;
+        default: return 1;
+      }
+    }
+
+    private void fail(int address, String message) {
+      throw new IllegalArgumentException("Address "+address+": "+message);
+    }
+
+}